@@ -35,70 +35,110 @@
 
 package net.tinyos.comm;
 
+/**
+ * A fixed-capacity ring buffer of bytes. The capacity is rounded up to a
+ * power of two. One thread may add bytes while another removes them
+ * without further synchronization; adding bytes to a full queue stores
+ * as many as fit, so callers must check the count returned. Run with
+ * -verify to stress the queue.
+ */
 public class ByteQueue
 {
-  byte buffer[];
-  int nbegin;
-  int nend;
+  final byte buffer[];
+  final int mask;
+  // nbegin and nend only ever increase (modulo 2^32); the byte at
+  // position n is buffer[n & mask]. Only the consumer writes nbegin and
+  // only the producer writes nend.
+  volatile int nbegin;
+  volatile int nend;
 
-  int num_free_back()
+  public int capacity()
   {
-    return buffer.length - nend;
+    return buffer.length;
   }
 
-  void left_justify_into( byte dest[] )
+  public int available()
   {
-    for( int i=nbegin,j=0; i<nend; i++,j++ )
-      dest[j] = buffer[i];
-    nend -= nbegin;
-    nbegin = 0;
-    buffer = dest;
+    return nend - nbegin;
   }
 
-  synchronized void ensure_free( int len )
+  public int num_free()
   {
-    if( (nbegin + num_free_back()) < len )
-    {
-      int newlen = buffer.length * 2;
-      int total = available() + len;
-      while( newlen < total )
-        newlen *= 2;
-      left_justify_into( new byte[newlen] );
-    }
-    else if( num_free_back() < len )
-    {
-      left_justify_into( buffer );
-    }
+    return buffer.length - available();
   }
 
-  public int available()
+  public boolean push_back( byte b )
   {
-    return nend - nbegin;
+    int end = nend;
+    if( end - nbegin == buffer.length )
+      return false;
+    buffer[end & mask] = b;
+    nend = end + 1;
+    return true;
   }
 
-  public void push_back( byte b )
+  /**
+   * Add as many bytes from b as fit
+   * @return The number of bytes added
+   */
+  public int push_back( byte b[] )
   {
-    ensure_free(1);
-    buffer[nend++] = b;
+    return push_back( b, 0, b.length );
   }
 
-  public void push_back( byte b[] )
+  /**
+   * Add up to len bytes from b[off...] to the queue
+   * @return The number of bytes added
+   */
+  public int push_back( byte b[], int off, int len )
   {
-    push_back( b, 0, b.length );
+    int end = nend;
+    int n = buffer.length - (end - nbegin);
+    if( n > len )
+      n = len;
+    int pos = end & mask;
+    int first = Math.min( n, buffer.length - pos );
+    System.arraycopy( b, off, buffer, pos, first );
+    System.arraycopy( b, off + first, buffer, 0, n - first );
+    nend = end + n;
+    return n;
   }
 
-  public void push_back( byte b[], int off, int len )
+  /**
+   * Read up to len bytes from port directly into the queue
+   * @return The number of bytes added
+   */
+  public int read_from( NativeSerial port, int len )
   {
-    ensure_free( len );
-    int bend = off + len;
-    while( off < bend )
-      buffer[nend++] = b[off++];
+    int end = nend;
+    int n = buffer.length - (end - nbegin);
+    if( n > len )
+      n = len;
+    int total = 0;
+    while( total < n )
+    {
+      int pos = (end + total) & mask;
+      int count = Math.min( n - total, buffer.length - pos );
+      int nread = port.read( buffer, pos, count );
+      if( nread <= 0 )
+        break;
+      total += nread;
+      if( nread < count )
+        break;
+    }
+    nend = end + total;
+    return total;
   }
 
   public int pop_front()
   {
-    if( available() > 0 )
-      return ((int)buffer[nbegin++]) & 255;
+    int begin = nbegin;
+    if( nend - begin > 0 )
+    {
+      int b = buffer[begin & mask] & 255;
+      nbegin = begin + 1;
+      return b;
+    }
     return -1;
   }
 
@@ -107,14 +147,21 @@ public class ByteQueue
     return pop_front( b, 0, b.length );
   }
 
+  /**
+   * Remove up to len bytes from the queue into b[off...]
+   * @return The number of bytes removed
+   */
   public int pop_front( byte b[], int off, int len )
   {
-    int n = available();
+    int begin = nbegin;
+    int n = nend - begin;
     if( n > len )
       n = len;
-    int bend = off + len;
-    while( off < bend )
-      b[off++] = buffer[nbegin++];
+    int pos = begin & mask;
+    int first = Math.min( n, buffer.length - pos );
+    System.arraycopy( buffer, pos, b, off, first );
+    System.arraycopy( buffer, 0, b, off + first, n - first );
+    nbegin = begin + n;
     return n;
   }
 
@@ -123,11 +170,110 @@ public class ByteQueue
     this(64);
   }
 
-  public ByteQueue( int initial_buffer_length )
+  public ByteQueue( int capacity )
   {
-    buffer = new byte[ initial_buffer_length ];
+    int length = 1;
+    while( length < capacity )
+      length *= 2;
+    buffer = new byte[ length ];
+    mask = length - 1;
     nbegin = 0;
     nend = 0;
   }
-}
 
+  // Expected value of the n'th byte through the queue in verify()
+  static byte pattern( long n )
+  {
+    return (byte)(n ^ n >>> 8 ^ n >>> 16);
+  }
+
+  static void fail( String why )
+  {
+    System.out.println( "ByteQueue: " + why );
+    System.exit(1);
+  }
+
+  // Check partial pushes, and pass bytes from a producer to a consumer
+  // thread in random chunks through a small queue. The positions start
+  // just below 2^31 so that they wrap around too.
+  static void verify() throws InterruptedException
+  {
+    final ByteQueue q = new ByteQueue( 60 );
+    if( q.capacity() != 64 )
+      fail( "capacity " + q.capacity() );
+    q.nbegin = q.nend = Integer.MAX_VALUE - 1000;
+    if( q.push_back( new byte[100] ) != 64 || q.push_back( (byte)0 ) ||
+        q.num_free() != 0 || q.pop_front( new byte[10], 5, 5 ) != 5 ||
+        q.push_back( new byte[10], 2, 8 ) != 5 || q.available() != 64 )
+      fail( "partial push/pop miscounted" );
+    q.nbegin = q.nend;
+
+    final long total = 10000000;
+    final long[] sent = new long[1];
+    Thread producer = new Thread() {
+      public void run()
+      {
+        java.util.Random rand = new java.util.Random( 1 );
+        byte[] chunk = new byte[100];
+        long n = 0;
+        while( n < total )
+        {
+          if( rand.nextInt(4) == 0 )
+          {
+            if( q.push_back( pattern(n) ) )
+              n++;
+          }
+          else
+          {
+            int off = rand.nextInt( 10 ), len = rand.nextInt( 90 );
+            for( int i = 0; i < len; i++ )
+              chunk[off + i] = pattern( n + i );
+            n += q.push_back( chunk, off, len );
+          }
+          if( q.num_free() == 0 )
+            Thread.yield();
+        }
+        sent[0] = n;
+      }
+    };
+    producer.start();
+
+    java.util.Random rand = new java.util.Random( 2 );
+    byte[] chunk = new byte[100];
+    long n = 0;
+    while( n < total )
+    {
+      if( rand.nextInt(4) == 0 )
+      {
+        int b = q.pop_front();
+        if( b >= 0 && (byte)b != pattern( n++ ) )
+          fail( "byte " + (n - 1) + " corrupted" );
+      }
+      else
+      {
+        int off = rand.nextInt( 10 );
+        int count = q.pop_front( chunk, off, rand.nextInt( 90 ) );
+        for( int i = 0; i < count; i++ )
+          if( chunk[off + i] != pattern( n++ ) )
+            fail( "byte " + (n - 1) + " corrupted" );
+      }
+      if( q.available() == 0 )
+        Thread.yield();
+    }
+    producer.join();
+    if( sent[0] != total || q.available() != 0 )
+      fail( "sent " + sent[0] + ", " + q.available() + " left over" );
+    System.out.println( "ByteQueue: " + total + " bytes passed intact" );
+  }
+
+  public static void main( String[] args ) throws InterruptedException
+  {
+    if( args.length == 1 && args[0].equals( "-verify" ) )
+    {
+      verify();
+      return;
+    }
+    System.err.println( "usage: java net.tinyos.comm.ByteQueue -verify" );
+    System.exit(2);
+  }
+}
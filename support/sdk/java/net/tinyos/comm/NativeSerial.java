@@ -203,6 +203,51 @@ public class NativeSerial {
     return TOSCommJNI.NativeSerial_write__SWIG_1(swigCPtr, buffer_in, off, len);
   }
 
+  public int readDirect(java.nio.ByteBuffer buffer_nio, int off, int len, int timeout) {
+    return TOSCommJNI.NativeSerial_readDirect(swigCPtr, buffer_nio, off, len, timeout);
+  }
+
+  public int writeDirect(java.nio.ByteBuffer buffer_nio, int off, int len) {
+    return TOSCommJNI.NativeSerial_writeDirect(swigCPtr, buffer_nio, off, len);
+  }
+
+  /**
+   * Read into the remaining space of a direct buffer, without copying,
+   * and advance its position
+   * 
+   * @param buffer A direct buffer
+   * @param timeout Milliseconds to wait for at least one byte, -1 to wait
+   *          forever, 0 to not wait
+   * @return The number of bytes read, 0 on timeout, or -1 if the port is
+   *         closed
+   * @exception Exception If the read failed, e.g., because the
+   *         port hung up (a USB serial adapter was unplugged)
+   */
+  public int read(java.nio.ByteBuffer buffer, int timeout) {
+    if (swigCPtr == 0)
+      return -1;
+    int nread = readDirect(buffer, buffer.position(), buffer.remaining(), timeout);
+    if (nread > 0)
+      buffer.position(buffer.position() + nread);
+    return nread;
+  }
+
+  /**
+   * Write the remaining bytes of a direct buffer, without copying, and
+   * advance its position
+   * 
+   * @param buffer A direct buffer
+   * @return The number of bytes written, which is less than the bytes
+   *         remaining only if the port was closed
+   */
+  public int write(java.nio.ByteBuffer buffer) {
+    if (swigCPtr == 0)
+      return 0;
+    int nwritten = writeDirect(buffer, buffer.position(), buffer.remaining());
+    buffer.position(buffer.position() + nwritten);
+    return nwritten;
+  }
+
   public static String getTOSCommMap() {
     return TOSCommJNI.NativeSerial_getTOSCommMap();
   }
@@ -57,7 +57,6 @@ public interface SerialPort
 
   public boolean open();
   public void close();
-  public void finalize();
   
   public void setSerialPortParams( 
     int baudrate, int dataBits, int stopBits, boolean parity )
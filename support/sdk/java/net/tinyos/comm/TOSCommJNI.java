@@ -40,5 +40,7 @@ class TOSCommJNI {
   public final static native int NativeSerial_read__SWIG_1(long jarg1, byte[] jarg2, int jarg3, int jarg4);
   public final static native int NativeSerial_write__SWIG_0(long jarg1, int jarg2);
   public final static native int NativeSerial_write__SWIG_1(long jarg1, byte[] jarg2, int jarg3, int jarg4);
+  public final static native int NativeSerial_readDirect(long jarg1, java.nio.ByteBuffer jarg2, int jarg3, int jarg4, int jarg5);
+  public final static native int NativeSerial_writeDirect(long jarg1, java.nio.ByteBuffer jarg2, int jarg3, int jarg4);
   public final static native String NativeSerial_getTOSCommMap();
 }
@@ -149,14 +149,15 @@ public class TOSSerial extends NativeSerial implements SerialPort {
    * 
    */
   class SerialInputStream extends InputStream {
-    ByteQueue bq = new ByteQueue(128);
+    ByteQueue bq = new ByteQueue(4096);
 
-    protected void gather() {
+    // Move input from the driver to bq. Bytes that don't fit stay in the
+    // driver until the next read. Returns the number of bytes left there.
+    protected int gather() {
       int navail = TOSSerial.this.available();
-      if (navail > 0) {
-        byte buffer[] = new byte[navail];
-        bq.push_back(buffer, 0, TOSSerial.this.read(buffer, 0, navail));
-      }
+      if (navail > 0)
+        navail -= bq.read_from(TOSSerial.this, navail);
+      return navail;
     }
 
     public int read() {
@@ -175,8 +176,8 @@ public class TOSSerial extends NativeSerial implements SerialPort {
     }
 
     public int available() {
-      gather();
-      return bq.available();
+      int left = gather();
+      return bq.available() + left;
     }
   }
 
@@ -269,16 +270,30 @@ public class TOSSerial extends NativeSerial implements SerialPort {
   }
 
   /**
-   * Real Constructor of TOSSerial
+   * Constructor of TOSSerial, for a port that delivers serial events
    * 
    * @param portname
    */
   public TOSSerial(String portname) {
+    this(portname, true);
+  }
+
+  /**
+   * Real Constructor of TOSSerial
+   * 
+   * @param portname
+   * @param events false if this port will not deliver serial events, so
+   *          needs no dispatcher (e.g., when reading with
+   *          read(ByteBuffer, int))
+   */
+  public TOSSerial(String portname, boolean events) {
     super(map_portname(NativeSerial.getTOSCommMap(), portname));
     m_in = new SerialInputStream();
     m_out = new SerialOutputStream();
-    m_dispatch = new EventDispatcher();
-    m_dispatch.open();
+    if (events) {
+      m_dispatch = new EventDispatcher();
+      m_dispatch.open();
+    }
   }
 
   /**
@@ -0,0 +1,290 @@
+/* Copyright (c) 2000-2003 The Regents of the University of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.tinyos.comm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A serial port for Linux (and other systems with a GNU stty) that does
+ * not need the toscomm JNI library. The tty is configured with stty when
+ * opened and when its parameters change; all I/O goes through file
+ * channels on the device.
+ *
+ * Serial events are not supported: listeners are ignored. Use
+ * read(ByteBuffer), which blocks until data is available, or available()
+ * to poll, and close() to stop a blocked reader. The modem control lines and
+ * sendBreak() are also not supported.
+ *
+ * Java can't open the device with O_NOCTTY. A process that is a session
+ * leader without a controlling terminal (e.g., a daemon started with
+ * setsid, or by systemd) would acquire the tty as its controlling
+ * terminal, and be sent SIGHUP (which stops the JVM) when the device is
+ * unplugged. clocal only stops hangups caused by the modem lines. So in
+ * that case the port is not opened; use the toscomm library (serial@)
+ * instead, which opens it with O_NOCTTY.
+ */
+public class TTYSerial implements SerialPort {
+  private String m_portname;
+
+  private FileInputStream m_input;
+
+  private FileChannel m_in;
+
+  private FileChannel m_out;
+
+  private int m_baudrate = 9600;
+
+  private int m_databits = 8;
+
+  private int m_stopbits = STOPBITS_1;
+
+  private boolean m_parity = false;
+
+  /**
+   * Open a serial port
+   * 
+   * @param portname the tty device, e.g., /dev/ttyUSB0
+   * @throws IOException if the port can't be configured or opened
+   */
+  public TTYSerial(String portname) throws IOException {
+    m_portname = portname;
+    if (isSessionLeaderWithoutTTY())
+      throw new IOException("would become the controlling terminal of this "
+          + "session leader; use serial@ instead");
+    // Configure before opening: with clocal set, opening doesn't wait
+    // for carrier detect
+    stty(new String[] { "raw", "-echo", "clocal", "cread", "-crtscts",
+        "-ixon", "-ixoff", "min", "1", "time", "0" });
+    openChannels();
+  }
+
+  private void openChannels() throws IOException {
+    // Separate channels for each direction, as a FileChannel's reads and
+    // writes exclude each other
+    m_input = new FileInputStream(m_portname);
+    m_in = m_input.getChannel();
+    try {
+      m_out = new FileOutputStream(m_portname).getChannel();
+    } catch (IOException e) {
+      m_in.close();
+      throw e;
+    }
+  }
+
+  // True if we are a session leader without a controlling terminal, so
+  // that opening a tty without O_NOCTTY would make it ours. Based on
+  // /proc/self/stat: pid (comm) state ppid pgrp session tty_nr ...
+  // Assumes we're not if /proc isn't available.
+  private static boolean isSessionLeaderWithoutTTY() {
+    String stat;
+    try {
+      BufferedReader in = new BufferedReader(new FileReader("/proc/self/stat"));
+      try {
+        stat = in.readLine();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    if (stat == null)
+      return false;
+    int endComm = stat.lastIndexOf(')');
+    String[] fields = stat.substring(endComm + 2).split(" ");
+    try {
+      long pid = Long.parseLong(stat.substring(0, stat.indexOf(' ')));
+      return Long.parseLong(fields[3]) == pid && Long.parseLong(fields[4]) == 0;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  // Run stty on this port with the given settings
+  private void stty(String[] settings) throws IOException {
+    String[] command = new String[settings.length + 3];
+    command[0] = "stty";
+    command[1] = "-F";
+    command[2] = m_portname;
+    System.arraycopy(settings, 0, command, 3, settings.length);
+
+    Process stty = Runtime.getRuntime().exec(command);
+    try {
+      stty.getOutputStream().close();
+      BufferedReader errors = new BufferedReader(new InputStreamReader(
+          stty.getErrorStream()));
+      String message = errors.readLine();
+      if (stty.waitFor() != 0)
+        throw new IOException(message != null ? message : "stty failed on "
+            + m_portname);
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted");
+    } finally {
+      stty.destroy();
+    }
+  }
+
+  /**
+   * Read into a buffer, waiting until at least one byte is available
+   * 
+   * @return The number of bytes read, or -1 on hangup
+   * @throws IOException if the port is closed, including by another thread
+   *           or an interrupt of the reading thread
+   */
+  public int read(ByteBuffer buffer) throws IOException {
+    return m_in.read(buffer);
+  }
+
+  /**
+   * @return The number of bytes that can be read without blocking
+   * @throws IOException if the port is closed
+   */
+  public int available() throws IOException {
+    return m_input.available();
+  }
+
+  /**
+   * Write all remaining bytes of a buffer
+   * 
+   * @throws IOException if the port is closed
+   */
+  public void write(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining())
+      m_out.write(buffer);
+  }
+
+  public InputStream getInputStream() {
+    return Channels.newInputStream(m_in);
+  }
+
+  public OutputStream getOutputStream() {
+    return Channels.newOutputStream(m_out);
+  }
+
+  public boolean open() {
+    if (m_in.isOpen())
+      return false;
+    try {
+      openChannels();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public void close() {
+    try {
+      m_in.close();
+    } catch (IOException e) {
+    }
+    try {
+      m_out.close();
+    } catch (IOException e) {
+    }
+  }
+
+  public void setSerialPortParams(int baudrate, int dataBits, int stopBits,
+      boolean parity) throws UnsupportedCommOperationException {
+    if (dataBits < 5 || dataBits > 8 || stopBits == STOPBITS_1_5)
+      throw new UnsupportedCommOperationException("unsupported data or stop bits");
+    try {
+      stty(new String[] { Integer.toString(baudrate), "cs" + dataBits,
+          stopBits == STOPBITS_2 ? "cstopb" : "-cstopb",
+          parity ? "parenb" : "-parenb" });
+    } catch (IOException e) {
+      throw new UnsupportedCommOperationException(e.getMessage());
+    }
+    m_baudrate = baudrate;
+    m_databits = dataBits;
+    m_stopbits = stopBits;
+    m_parity = parity;
+  }
+
+  public int getBaudRate() {
+    return m_baudrate;
+  }
+
+  public int getDataBits() {
+    return m_databits;
+  }
+
+  public int getStopBits() {
+    return m_stopbits;
+  }
+
+  public boolean getParity() {
+    return m_parity;
+  }
+
+  public void sendBreak(int millis) {
+  }
+
+  public void setDTR(boolean dtr) {
+  }
+
+  public void setRTS(boolean rts) {
+  }
+
+  public boolean isDTR() {
+    return false;
+  }
+
+  public boolean isRTS() {
+    return false;
+  }
+
+  public boolean isCTS() {
+    return false;
+  }
+
+  public boolean isDSR() {
+    return false;
+  }
+
+  public boolean isRI() {
+    return false;
+  }
+
+  public boolean isCD() {
+    return false;
+  }
+
+  public void addListener(SerialPortListener l) {
+  }
+
+  public void removeListener(SerialPortListener l) {
+  }
+
+  public void notifyOn(int serialEvent, boolean enable) {
+  }
+}
@@ -94,21 +94,25 @@ public class MoteIF {
     /**
      * Create a new mote interface to packet source specified using the 
      * MOTECOM environment variable. Status and error messages will
-     * be printed to System.err.
+     * be printed to System.err. The packet source is shared with other
+     * MoteIFs on the same source in this program (see
+     * BuildSource.makeSharedPhoenix).
      */
     public MoteIF() {
-	init(BuildSource.makePhoenix(net.tinyos.util.PrintStreamMessenger.err));
+	init(BuildSource.makeSharedPhoenix(net.tinyos.util.PrintStreamMessenger.err));
     }
 
     /**
      * Create a new mote interface to packet source specified using the 
      * MOTECOM environment variable. Status and error messages will
-     * be printed to 'messages'.
+     * be printed to 'messages'. The packet source is shared with other
+     * MoteIFs on the same source in this program (see
+     * BuildSource.makeSharedPhoenix).
      *
      * @param messages where to send status messages (null means no messages)
      */
     public MoteIF(Messenger messages) {
-	init(BuildSource.makePhoenix(messages));
+	init(BuildSource.makeSharedPhoenix(messages));
     }
 
     /**
@@ -140,6 +144,16 @@ public class MoteIF {
 	sender = new Sender(source);
     }
 
+    /**
+     * Stop using this mote interface: its listeners are deregistered, and
+     * its packet source is released (see PhoenixSource.release), i.e.,
+     * shut down unless other MoteIFs share it.
+     */
+    public void release() {
+	source.deregisterPacketListener(receiver);
+	source.release();
+    }
+
     /**
      * @return this MoteIF's source 
      */
@@ -44,6 +44,7 @@
 package net.tinyos.packet;
 
 import java.io.*;
+import java.util.concurrent.TimeUnit;
 import net.tinyos.util.*;
 
 /**
@@ -52,7 +53,7 @@ import net.tinyos.util.*;
  * reading and writing. This class provides the automatic close-on-error
  * functionality, general error checking, and standard messages.
  */
-abstract public class AbstractSource implements PacketSource
+abstract public class AbstractSource implements TimedPacketSource
 {
     protected String name;
     protected boolean opened = false;
@@ -103,6 +104,39 @@ abstract public class AbstractSource implements PacketSource
 	}
     }
 
+    public byte[] readPacket(long timeout, TimeUnit unit) throws IOException {
+	failIfClosed();
+
+	long deadline = System.currentTimeMillis();
+	if (timeout > 0)
+	    deadline += unit.toMillis(timeout);
+	try {
+	    byte[] packet = readSourcePacket(deadline);
+	    return packet == null ? null : check(packet);
+	}
+	catch (InterruptedIOException e) {
+	    // A cancelled read leaves the source usable
+	    throw e;
+	}
+	catch (IOException e) {
+	    close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Read a packet from source, waiting at most timeout for one to
+     * arrive. Sources that are not TimedPacketSources (e.g., ones loaded
+     * by BuildSource from outside this package) get a plain blocking
+     * readPacket(), so only closing them ends the wait.
+     */
+    static byte[] readTimed(PacketSource source, long timeout, TimeUnit unit)
+	throws IOException {
+	if (source instanceof TimedPacketSource)
+	    return ((TimedPacketSource)source).readPacket(timeout, unit);
+	return source.readPacket();
+    }
+
     synchronized public boolean writePacket(byte[] packet) throws IOException {
 	failIfClosed();
 
@@ -123,6 +157,15 @@ abstract public class AbstractSource implements PacketSource
     abstract protected void openSource() throws IOException;
     abstract protected void closeSource() throws IOException;
     abstract protected byte[] readSourcePacket() throws IOException;
+
+    // Read a packet, giving up at deadline (System.currentTimeMillis,
+    // never 0). Returns null on timeout, throws InterruptedIOException
+    // if interrupted. This default ignores the deadline, sources that
+    // can wait with a timeout should override it.
+    protected byte[] readSourcePacket(long deadline) throws IOException {
+	return readSourcePacket();
+    }
+
     protected boolean writeSourcePacket(byte[] packet) throws IOException {
 	// Default writer swallows packets
 	return true;
@@ -0,0 +1,174 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Delivers packets to a listener from a thread of its own, through a
+ * bounded PacketQueue, so that a slow listener doesn't hold up the
+ * PhoenixSource it is registered with (and so every other listener).
+ * When the listener falls behind and its queue fills up, the queue's
+ * overflow policy applies: with DROP_OLDEST or DROP_NEWEST the listener
+ * loses packets, with BLOCK it holds up the PhoenixSource as a
+ * synchronous listener would.
+ *
+ * AsyncPacketListeners are built by
+ * <code>PhoenixSource.registerPacketListener(listener, capacity,
+ * policy)</code>, and keep per-listener counts of delivered and dropped
+ * packets, and of how far behind the listener is (its lag, in packets).
+ */
+public class AsyncPacketListener implements PacketListenerIF
+{
+    private PacketListenerIF listener;
+    private PacketQueue queue;
+    private Thread deliverer;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile int maxLag;
+
+    AsyncPacketListener(PacketListenerIF listener, int capacity, int policy) {
+	this.listener = listener;
+	queue = new PacketQueue(capacity, policy);
+	deliverer = new Thread("PacketListener") {
+		public void run() {
+		    deliver();
+		}
+	    };
+	deliverer.setDaemon(true);
+	deliverer.start();
+    }
+
+    // Called by the PhoenixSource thread, the queue's only producer
+    public void packetReceived(byte[] packet) {
+	queue.offer(packet);
+	int lag = queue.size();
+	if (lag > maxLag)
+	    maxLag = lag;
+    }
+
+    private void deliver() {
+	for (;;) {
+	    byte[] packet;
+
+	    try {
+		packet = queue.take(0);
+	    }
+	    catch (IOException e) {
+		// closed and drained
+		return;
+	    }
+	    try {
+		listener.packetReceived(packet);
+	    }
+	    catch (RuntimeException e) {
+		// Don't let one bad packet stop delivery
+		e.printStackTrace();
+	    }
+	    delivered.incrementAndGet();
+	}
+    }
+
+    /**
+     * Stop delivering packets: packets already queued are still
+     * delivered, later ones are dropped.
+     */
+    void close() {
+	queue.close();
+    }
+
+    /**
+     * @return The listener packets are delivered to
+     */
+    public PacketListenerIF getListener() {
+	return listener;
+    }
+
+    /**
+     * @return The number of packets delivered to the listener
+     */
+    public long getDelivered() {
+	return delivered.get();
+    }
+
+    /**
+     * @return The number of packets dropped because the listener's queue
+     *   was full
+     */
+    public long getDropped() {
+	return queue.getDropped();
+    }
+
+    /**
+     * @return The number of packets waiting for delivery
+     */
+    public int getLag() {
+	return queue.size();
+    }
+
+    /**
+     * @return The largest number of packets that were waiting for delivery
+     */
+    public int getMaxLag() {
+	return maxLag;
+    }
+
+    /**
+     * @return The listener's queue capacity, in packets
+     */
+    public int getCapacity() {
+	return queue.capacity();
+    }
+
+    /**
+     * @return The listener's overflow policy (see PacketQueue)
+     */
+    public int getPolicy() {
+	return queue.getPolicy();
+    }
+
+    public String toString() {
+	return listener + ": " + getDelivered() + " delivered, " +
+	    getDropped() + " dropped, lag " + getLag() + " (max " +
+	    getMaxLag() + ")";
+    }
+}
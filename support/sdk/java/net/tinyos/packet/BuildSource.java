@@ -41,6 +41,7 @@
  */
 package net.tinyos.packet;
 
+import java.util.*;
 import net.tinyos.util.*;
 
 /**
@@ -54,9 +55,7 @@ import net.tinyos.util.*;
  * a PacketSource.
  *
  * The default source is specified by the MOTECOM environment variable
- * (note that the JNI code for net.tinyos.util.Env must be installed for
- * this to work - see net/tinyos/util/Env.INSTALL for details). When
- * MOTECOM is undefined (or the JNI code for Env.java cannot be found), the
+ * (read with net.tinyos.util.Env). When MOTECOM is undefined, the
  * packet source is "sf@localhost:9002" (new serial-forwarder, on localhost
  * port 9002).
  *
@@ -69,8 +68,22 @@ import net.tinyos.util.*;
  * where source-args have reasonable defaults for most sources.
  * The <code>sourceHelp</code> method prints an up-to-date description
  * of known sources and their arguments.
+ *
+ * Components of one program which talk to the same mote or serial
+ * forwarder can share a single PhoenixSource (and hence a single serial
+ * port or connection) by using the makeSharedPhoenix methods.
  */
 public class BuildSource {
+    // Shared PhoenixSources (see makeSharedPhoenix), by packet source name.
+    // Also protects the reference counts of these sources.
+    private static final Hashtable<String, PhoenixSource> sharedPhoenixes =
+	new Hashtable<String, PhoenixSource>();
+
+    // Duplicate suppression defaults for merge sources: packets are
+    // remembered for MERGE_WINDOW ms, up to MERGE_ENTRIES packets
+    private static final long MERGE_WINDOW = 1000;
+    private static final int MERGE_ENTRIES = 4096;
+
     /**
      * Make a new PhoenixSource over a specified PacketSource
      * Note that a PhoenixSource must be started (<code>start</code> method)
@@ -121,6 +134,118 @@ public class BuildSource {
 	return new PhoenixSource(source, messages);
     }
 
+    /**
+     * Get a PhoenixSource for the specified packet source which is shared
+     * with the rest of this program: all callers asking for the same
+     * packet source get the same PhoenixSource, whose thread reads the
+     * packets for all their listeners. Packet sources are the same if
+     * their names (see PacketSource.getName) are the same, e.g.,
+     * serial@COM1:mica2 and serial@COM1:57600 are the same source.
+     * In-memory sources (mem@NAME), and sources built on them, are not
+     * shared: each mem@ source is a separate endpoint of its link, so
+     * callers get a PhoenixSource of their own.
+     *
+     * Each call must be matched by a call to <code>release</code> on the
+     * returned PhoenixSource (not <code>shutdown</code>), which shuts it
+     * down once its last user has released it. As with makePhoenix, the
+     * PhoenixSource must be started if it hasn't been yet (MoteIF does
+     * this), and resurrection is off by default. Status messages go to
+     * the messages of the first caller.
+     * @param name The packet-source to use, specified with a packet-source
+     *   string
+     * @param messages Where to send status messages (null for no messages)
+     * @return The shared PhoenixSource, or null if name is an invalid
+     *   source
+     */
+    public static PhoenixSource makeSharedPhoenix(String name, Messenger messages) {
+	PacketSource source = makePacketSource(name);
+	if (source == null) {
+	    return null;
+	}
+
+	// source is just used for its name if the PhoenixSource exists
+	// (building a packet source doesn't open it)
+	String key = source.getName();
+	if (isLoopback(key))
+	    return new PhoenixSource(source, messages);
+	synchronized (sharedPhoenixes) {
+	    PhoenixSource phoenix = sharedPhoenixes.get(key);
+	    // If its last user just released it, wait for its shutdown to
+	    // finish so that its source is closed before we reopen it
+	    boolean interrupted = false;
+	    while (phoenix != null && phoenix.isReleased()) {
+		try {
+		    sharedPhoenixes.wait();
+		}
+		catch (InterruptedException e) {
+		    interrupted = true;
+		}
+		phoenix = sharedPhoenixes.get(key);
+	    }
+	    if (interrupted)
+		Thread.currentThread().interrupt();
+	    if (phoenix == null || phoenix.isShutdown()) {
+		phoenix = new PhoenixSource(source, messages);
+		phoenix.setSharedName(key);
+		sharedPhoenixes.put(key, phoenix);
+	    }
+	    phoenix.addReference();
+	    return phoenix;
+	}
+    }
+
+    // True if the packet source called name includes a mem@ source (as
+    // itself, or as a merge, failover or pipeline component)
+    private static boolean isLoopback(String name) {
+	StringTokenizer components = new StringTokenizer(name, "@+|", true);
+	String previous = "+";
+	while (components.hasMoreTokens()) {
+	    String token = components.nextToken();
+	    if (token.equals("mem") && !previous.equals("|") &&
+		components.hasMoreTokens() && components.nextToken().equals("@"))
+		return true;
+	    previous = token;
+	}
+	return false;
+    }
+
+    /**
+     * Get a shared PhoenixSource for the default packet source, see
+     * <code>makeSharedPhoenix(String, Messenger)</code>
+     * @param messages Where to send status messages (null for no messages)
+     * @return The shared PhoenixSource, or null if the default packet
+     *   source is invalid
+     */
+    public static PhoenixSource makeSharedPhoenix(Messenger messages) {
+	return makeSharedPhoenix(Env.getenv("MOTECOM"), messages);
+    }
+
+    // Drop a reference to phoenix. Returns true if phoenix should be shut
+    // down (it isn't shared, or this was the last reference), in which
+    // case the caller must call sharedShutdown once it has been. Until
+    // then phoenix stays registered, so makeSharedPhoenix waits for it.
+    static boolean releaseShared(PhoenixSource phoenix) {
+	synchronized (sharedPhoenixes) {
+	    if (phoenix.getSharedName() == null)
+		return true;
+	    return phoenix.dropReference() <= 0;
+	}
+    }
+
+    // Unregister phoenix, whose shutdown after its last release has
+    // finished
+    static void sharedShutdown(PhoenixSource phoenix) {
+	synchronized (sharedPhoenixes) {
+	    String key = phoenix.getSharedName();
+	    if (key == null)
+		return;
+	    if (sharedPhoenixes.get(key) == phoenix)
+		sharedPhoenixes.remove(key);
+	    phoenix.setSharedName(null);
+	    sharedPhoenixes.notifyAll();
+	}
+    }
+
     /**
      * Make the default packet source
      * @return The packet source, or null if it could not be made
@@ -138,6 +263,10 @@ public class BuildSource {
 	if (name == null)
 	    name = "sf@localhost:9002"; // default source
 
+	// Pipeline stages follow the source, separated by |
+	if (name.indexOf('|') >= 0)
+	    return makeArgsPipeline(name);
+
 	ParseArgs parser = new ParseArgs(name, "@");
 	String source = parser.next();
 	String args = parser.next();
@@ -147,8 +276,18 @@ public class BuildSource {
 	    retVal =  makeArgsSF(args);
 	if (source.equals("serial"))
 	    retVal =  makeArgsSerial(args);
+	if (source.equals("serialj"))
+	    retVal =  makeArgsSerialJ(args);
 	if (source.equals("network"))
 	    retVal =  makeArgsNetwork(args);
+	if (source.equals("replay"))
+	    retVal =  makeArgsReplay(args);
+	if (source.equals("mem"))
+	    retVal =  makeArgsMem(args);
+	if (source.equals("merge"))
+	    retVal =  makeArgsMerge(args);
+	if (source.equals("failover"))
+	    retVal =  makeArgsFailover(args);
 	if (source.equals("tossim-serial"))
 	    retVal =  makeArgsTossimSerial(args);
 	if (source.equals("tossim-radio"))
@@ -168,8 +307,54 @@ public class BuildSource {
 "    A mote connected to a serial port using the TinyOS 2.0 serial protocol.\n" +
 "     BAUDRATE is either a number or a platform name (selects platform's\n" +
 "     default baud rate).\n" +
+"  - serialj@DEVICE:BAUDRATE\n" +
+"    As serial, but without the toscomm JNI library (Linux only; uses stty).\n" +
+"     Not usable from a session leader without a controlling terminal\n" +
+"     (e.g., a daemon), as the port would become its terminal.\n" +
 "  - network@HOSTNAME:PORTNUMBER\n" +
 "    A mote whose serial port is accessed over the network.\n" +
+"  - replay@FILE[:SPEED]\n" +
+"    Replay the bytes received in a capture file, SPEED times faster than\n" +
+"    they were captured (default 1), or as fast as possible if SPEED is max.\n" +
+"  - mem@NAME[:framed]\n" +
+"    An in-memory loopback: two mem sources with the same NAME are\n" +
+"    connected. With framed, packets go through the serial protocol.\n" +
+"  - merge@SOURCE+SOURCE[+...]\n" +
+"    Merge the packets received by several sources (e.g., base stations\n" +
+"    in overlapping radio range), dropping packets already received by\n" +
+"    another source in the last second.\n" +
+"  - failover@SOURCE+SOURCE[+...]\n" +
+"    Use the first working source, keeping the others open as standbys.\n" +
+"  Any source may be followed by |-separated pipeline stages, which\n" +
+"  filter the packets it receives, in order (e.g.,\n" +
+"  serial@/dev/ttyUSB0:telosb|amtype=10,11|sample=10):\n" +
+"    amtype=N[,N...]        pass AM packets of these AM types\n" +
+"    src=N[,N...]           ... from these source addresses\n" +
+"    dest=N[,N...]          ... to these destination addresses\n" +
+"    group=N[,N...]         ... in these groups\n" +
+"    sample=N               pass one packet in every N\n" +
+"    ratelimit=PPS[,BURST]  pass at most PPS packets/s, in bursts of up\n" +
+"                           to BURST packets (default PPS)\n" +
+"    dedup=MS               drop packets identical to one passed in the\n" +
+"                           last MS ms\n" +
+"    tee=FILE               append the packets to FILE\n" +
+"  serial, serialj, network, replay and framed mem sources accept\n" +
+"  comma-separated options after their arguments (e.g.,\n" +
+"  serial@/dev/ttyUSB0:telosb,coalesce=500):\n" +
+"    coalesce=MICROSECONDS  combine writes made within MICROSECONDS\n" +
+"    coalescebytes=N        ... up to N bytes (default 1024)\n" +
+"    mtu=N                  accept frames of up to N bytes (default 256);\n" +
+"                           writing a packet longer than N-4 bytes (252\n" +
+"                           by default) fails, where older versions sent\n" +
+"                           it regardless\n" +
+"    capture=FILE           record all bytes read and written in FILE, for\n" +
+"                           replay@FILE\n" +
+"    capturemb=N            ... starting FILE.1, FILE.2, etc every N MB\n" +
+"    captureseconds=N       ... or every N seconds\n" +
+"  network and sf sources also accept:\n" +
+"    connecttimeout=MS      give up connecting after MS ms (default 10000)\n" +
+"    readtimeout=MS         fail if nothing is received for MS ms\n" +
+"                           (default 0, i.e., never)\n" +
 "  - tossim-serial[@HOSTNAME]\n" +
 "    The serial port of tossim node 0.\n" +
 "  - tossim-radio[@HOSTNAME]\n" +
@@ -180,21 +365,34 @@ public class BuildSource {
 
     /**
      * Make a serial-forwarder source  (tcp/ip client) from an argument string
-     * @param args "hostname:port-number", or null for "localhost:9002"
+     * @param args "hostname:port-number[,options]", or null for
+     *   "localhost:9002". options are described in <code>sourceHelp</code>
      * @return The new PacketSource or null for invalid arguments
      */
     public static PacketSource makeArgsSF(String args) {
 	if (args == null)
 	    args = "localhost:9002";
 
-	ParseArgs parser = new ParseArgs(args, ":");
+	ParseArgs parser = new ParseArgs(args, ":,");
 	String host = parser.next();
 	String portS = parser.next();
+	String options = parser.next();
 	if (portS == null)
 	    return null;
 	int port = Integer.parseInt(portS);
 
-	return makeSF(host, port);
+	SFSource source = new SFSource(host, port);
+	if (options == null)
+	    return source;
+
+	Hashtable<String, String> settings = parseOptions(options);
+	if (settings == null ||
+	    !setChannelOptions(source.getChannel(), settings) ||
+	    !settings.isEmpty())
+	    return null;
+	source.setName(source.getName() + "," + options);
+
+	return source;
     }
 
     /**
@@ -223,22 +421,50 @@ public class BuildSource {
     /**
      * Make a serial-port packet source. Serial packet sources report
      * missing acknowledgements via a false result to writePacket.
-     * @param args "COMn[:baudrate]" ("COM1" if args is null)
+     * @param args "COMn[:baudrate][,options]" ("COM1" if args is null)
      *   baudrate is an integer or mote name
      *   The default baudrate is 19200.
+     *   options are described in <code>sourceHelp</code>
      * @return The new packet source, or null if the arguments are invalid
      */
     public static PacketSource makeArgsSerial(String args) {
 	if (args == null)
 	    args = "COM1";
 
-	ParseArgs parser = new ParseArgs(args, ":");
+	ParseArgs parser = new ParseArgs(args, ":,");
 	String port = parser.next();
 	String platformOrBaud = parser.next();
+	String options = parser.next();
 	int baudrate = decodeBaudrate(platformOrBaud);
 	if (baudrate < 0)
 	    return null;
-	return makeSerial(port, baudrate);
+	return makePacketizer("serial@" + port + ":" + baudrate,
+			      new SerialByteSource(port, baudrate), options);
+    }
+
+    /**
+     * Make a serial-port packet source that doesn't need the toscomm JNI
+     * library (Linux only). Serial packet sources report missing
+     * acknowledgements via a false result to writePacket.
+     * @param args "DEVICE[:baudrate][,options]" ("/dev/ttyS0" if args is
+     *   null). baudrate is an integer or mote name
+     *   The default baudrate is 19200.
+     *   options are described in <code>sourceHelp</code>
+     * @return The new packet source, or null if the arguments are invalid
+     */
+    public static PacketSource makeArgsSerialJ(String args) {
+	if (args == null)
+	    args = "/dev/ttyS0";
+
+	ParseArgs parser = new ParseArgs(args, ":,");
+	String port = parser.next();
+	String platformOrBaud = parser.next();
+	String options = parser.next();
+	int baudrate = decodeBaudrate(platformOrBaud);
+	if (baudrate < 0)
+	    return null;
+	return makePacketizer("serialj@" + port + ":" + baudrate,
+			      new TTYByteSource(port, baudrate), options);
     }
 
     /**
@@ -253,6 +479,228 @@ public class BuildSource {
 			      new SerialByteSource(port, baudrate));
     }
 
+    /**
+     * Make an in-memory packet source. Two sources with the same name
+     * are connected to each other.
+     * @param args "NAME[:framed][,options]". With framed, the packets are
+     *   sent using the serial protocol over in-memory byte sources.
+     *   options (only allowed with framed) are described in
+     *   <code>sourceHelp</code>
+     * @return The new packet source, or null if the arguments are invalid
+     */
+    public static PacketSource makeArgsMem(String args) {
+	if (args == null)
+	    return null;
+
+	ParseArgs parser = new ParseArgs(args, ":,");
+	String name = parser.next();
+	String mode = parser.next();
+	String options = parser.next();
+
+	if (mode == null) {
+	    if (options != null)
+		return null;
+	    return new MemorySource(name);
+	}
+	if (!mode.equals("framed"))
+	    return null;
+	return makePacketizer("mem@" + name + ":framed",
+			      new MemoryByteSource(name), options);
+    }
+
+    /**
+     * Make a packet source merging the packets of several sources, see
+     * MergeSource
+     * @param args "SOURCE+SOURCE[+...]", where each SOURCE is a packet
+     *   source string
+     * @return The new packet source, or null if the arguments are invalid
+     */
+    public static PacketSource makeArgsMerge(String args) {
+	PacketSource[] gateways = makeSourceList(args);
+	if (gateways == null)
+	    return null;
+	return makeMerge(gateways, MERGE_WINDOW, MERGE_ENTRIES);
+    }
+
+    /**
+     * Make a packet source merging the packets of several sources, see
+     * MergeSource
+     * @param gateways The sources to merge (at most 64)
+     * @param window How long packets are remembered to recognise
+     *   duplicates (ms)
+     * @param maxEntries How many packets are remembered at most
+     * @return The new packet source
+     */
+    public static MergeSource makeMerge(PacketSource[] gateways,
+					long window, int maxEntries) {
+	return new MergeSource(gateways, window, maxEntries);
+    }
+
+    /**
+     * Make a packet source which fails over between several sources, see
+     * FailoverSource
+     * @param args "SOURCE+SOURCE[+...]", where each SOURCE is a packet
+     *   source string, in order of preference
+     * @return The new packet source, or null if the arguments are invalid
+     */
+    public static PacketSource makeArgsFailover(String args) {
+	PacketSource[] sources = makeSourceList(args);
+	if (sources == null)
+	    return null;
+	return makeFailover(sources);
+    }
+
+    /**
+     * Make a packet source which fails over between several sources, see
+     * FailoverSource
+     * @param sources The sources, in order of preference
+     * @return The new packet source
+     */
+    public static FailoverSource makeFailover(PacketSource[] sources) {
+	return new FailoverSource(sources);
+    }
+
+    // Make the sources of a "SOURCE+SOURCE[+...]" list, which must have
+    // 2 to 64 elements. Returns null if the list is invalid.
+    private static PacketSource[] makeSourceList(String args) {
+	if (args == null)
+	    return null;
+
+	Vector<PacketSource> sources = new Vector<PacketSource>();
+	StringTokenizer tokens = new StringTokenizer(args, "+");
+	while (tokens.hasMoreTokens()) {
+	    PacketSource source = makePacketSource(tokens.nextToken());
+	    if (source == null)
+		return null;
+	    sources.addElement(source);
+	}
+	if (sources.size() < 2 || sources.size() > 64)
+	    return null;
+
+	PacketSource[] list = new PacketSource[sources.size()];
+	sources.copyInto(list);
+	return list;
+    }
+
+    /**
+     * Make a packet source whose packets pass through a pipeline of
+     * stages, see PipelineSource
+     * @param args "SOURCE|STAGE[|STAGE...]", where SOURCE is a packet
+     *   source string and the STAGEs are described in <code>sourceHelp</code>
+     * @return The new packet source, or null if the arguments are invalid
+     */
+    public static PacketSource makeArgsPipeline(String args) {
+	StringTokenizer tokens = new StringTokenizer(args, "|");
+	if (!tokens.hasMoreTokens())
+	    return null;
+	PacketSource source = makePacketSource(tokens.nextToken());
+	if (source == null || !tokens.hasMoreTokens())
+	    return null;
+
+	PipelineSource pipeline = makePipeline(source);
+	while (tokens.hasMoreTokens()) {
+	    PacketStage stage = makeStage(tokens.nextToken());
+	    if (stage == null)
+		return null;
+	    pipeline.add(stage);
+	}
+	return pipeline;
+    }
+
+    /**
+     * Make a packet source whose packets pass through a pipeline of
+     * stages, see PipelineSource. Stages are added with
+     * <code>PipelineSource.add</code>.
+     * @param source The packet source whose packets are passed through
+     *   the pipeline
+     * @return The new packet source, with no stages
+     */
+    public static PipelineSource makePipeline(PacketSource source) {
+	return new PipelineSource(source);
+    }
+
+    /**
+     * Make a pipeline stage from its description
+     * @param spec "NAME=ARGS", as described in <code>sourceHelp</code>
+     * @return The new stage, or null if spec is invalid
+     */
+    public static PacketStage makeStage(String spec) {
+	ParseArgs parser = new ParseArgs(spec, "=");
+	String name = parser.next();
+	String args = parser.next();
+	if (name == null || args == null || args.length() == 0)
+	    return null;
+
+	try {
+	    for (int field = 0; field < FilterStage.NAMES.length; field++)
+		if (name.equals(FilterStage.NAMES[field])) {
+		    StringTokenizer tokens = new StringTokenizer(args, ",");
+		    int[] values = new int[tokens.countTokens()];
+		    for (int i = 0; i < values.length; i++)
+			values[i] = Integer.decode(tokens.nextToken()).intValue();
+		    if (values.length == 0)
+			return null;
+		    return new FilterStage(field, values);
+		}
+	    if (name.equals("sample"))
+		return new SampleStage(Integer.parseInt(args));
+	    if (name.equals("ratelimit")) {
+		ParseArgs values = new ParseArgs(args, ",");
+		double rate = Double.parseDouble(values.next());
+		String burstS = values.next();
+		int burst = burstS != null ? Integer.parseInt(burstS) :
+		    (int)Math.max(1, Math.ceil(rate));
+		return new RateLimitStage(rate, burst);
+	    }
+	    if (name.equals("dedup"))
+		return new DedupStage(Long.parseLong(args));
+	    if (name.equals("tee"))
+		return new TeeStage(args);
+	}
+	catch (IllegalArgumentException e) { } // includes NumberFormatException
+	return null;
+    }
+
+    /**
+     * Make a packet source that replays the bytes received in a capture
+     * file (see CaptureFile)
+     * @param args "FILE[:SPEED][,options]". SPEED is the speed-up
+     *   relative to the original timing (default 1), or "max" to replay
+     *   as fast as possible. options are described in
+     *   <code>sourceHelp</code>
+     * @return The new packet source, or null if the arguments are invalid
+     */
+    public static PacketSource makeArgsReplay(String args) {
+	if (args == null)
+	    return null;
+
+	ParseArgs parser = new ParseArgs(args, ":,");
+	String file = parser.next();
+	String speedS = parser.next();
+	String options = parser.next();
+	double speed = 1;
+
+	if (speedS != null) {
+	    if (speedS.equals("max"))
+		speed = 0;
+	    else {
+		try {
+		    speed = Double.parseDouble(speedS);
+		}
+		catch (NumberFormatException e) {
+		    return null;
+		}
+		if (!(speed > 0))
+		    return null;
+	    }
+	}
+	else
+	    speedS = "1";
+
+	return makePacketizer("replay@" + file + ":" + speedS,
+			      new ReplayByteSource(file, speed), options);
+    }
+
     /**
      * Make a serial-port packet source for a network-accessible serial
      * port. Serial packet sources report missing acknowledgements via a
@@ -267,11 +715,13 @@ public class BuildSource {
 	ParseArgs parser = new ParseArgs(args, ":,");
 	String host = parser.next();
 	String portS = parser.next();
+	String options = parser.next();
 	if (portS == null)
 	    return null;
 	int port = Integer.parseInt(portS);
 
-	return makeNetwork(host, port);
+	return makePacketizer("network@" + host + ":" + port,
+			      new ChannelByteSource(host, port), options);
     }
 
     /**
@@ -284,7 +734,115 @@ public class BuildSource {
      */
     public static PacketSource makeNetwork(String host, int port) {
 	return new Packetizer("network@" + host + ":" + port,
-			      new NetworkByteSource(host, port));
+			      new ChannelByteSource(host, port));
+    }
+
+    /**
+     * Parse a comma-separated list of name=value options
+     * @return A table from option names to values, or null if options is
+     *   invalid
+     */
+    private static Hashtable<String, String> parseOptions(String options) {
+	Hashtable<String, String> settings = new Hashtable<String, String>();
+	String[] list = options.split(",");
+
+	for (int i = 0; i < list.length; i++) {
+	    ParseArgs parser = new ParseArgs(list[i], "=");
+	    String option = parser.next();
+	    String value = parser.next();
+
+	    if (value == null || value.length() == 0)
+		return null;
+	    settings.put(option, value);
+	}
+	return settings;
+    }
+
+    // Remove integer option from settings, returning its value or
+    // defaultValue if it is absent. Returns -1 if the value is not an
+    // integer in [min, max] (min must be >= 0).
+    private static int takeOption(Hashtable<String, String> settings,
+				  String option, int defaultValue, int min,
+				  int max) {
+	String value = settings.remove(option);
+	int n;
+
+	if (value == null)
+	    return defaultValue;
+	try {
+	    n = Integer.parseInt(value);
+	}
+	catch (NumberFormatException e) {
+	    return -1;
+	}
+	if (n < min || n > max)
+	    return -1;
+	return n;
+    }
+
+    // Apply (and remove) the network timeout options in settings to
+    // channel. Returns false for invalid values.
+    private static boolean setChannelOptions(ChannelByteSource channel,
+					     Hashtable<String, String> settings) {
+	int connectTimeout = takeOption(settings, "connecttimeout", 10000,
+					0, Integer.MAX_VALUE);
+	int readTimeout = takeOption(settings, "readtimeout", 0,
+				     0, Integer.MAX_VALUE);
+
+	if (connectTimeout < 0 || readTimeout < 0)
+	    return false;
+	channel.setConnectTimeout(connectTimeout);
+	channel.setReadTimeout(readTimeout);
+	return true;
+    }
+
+    /**
+     * Make a serial-protocol packet source over a byte source, configured
+     * by a comma-separated list of name=value options (see sourceHelp)
+     * @param name Packet source name, without options
+     * @param io Byte source for the packet source
+     * @param options The options, or null for none
+     * @return The new packet source, or null if the options are invalid
+     */
+    private static PacketSource makePacketizer(String name, ByteSource io,
+					       String options) {
+	if (options == null)
+	    return new Packetizer(name, io);
+
+	Hashtable<String, String> settings = parseOptions(options);
+	if (settings == null)
+	    return null;
+
+	int coalesce = takeOption(settings, "coalesce", 0, 1, Integer.MAX_VALUE);
+	int coalesceBytes = takeOption(settings, "coalescebytes", 1024,
+				       1, Integer.MAX_VALUE);
+	int mtu = takeOption(settings, "mtu", Packetizer.MTU,
+			     Packetizer.MTU, Packetizer.MAX_MTU);
+	String capture = settings.remove("capture");
+	int captureMBytes = takeOption(settings, "capturemb", 0,
+				       0, Integer.MAX_VALUE);
+	int captureSeconds = takeOption(settings, "captureseconds", 0,
+					0, Integer.MAX_VALUE);
+	if (coalesce < 0 || coalesceBytes < 0 || mtu < 0 ||
+	    captureMBytes < 0 || captureSeconds < 0)
+	    return null;
+
+	if (io instanceof ChannelByteSource &&
+	    !setChannelOptions((ChannelByteSource)io, settings))
+	    return null;
+
+	// Unknown options
+	if (!settings.isEmpty())
+	    return null;
+
+	// Capture sees what is actually written, after coalescing
+	if (capture != null)
+	    io = new CaptureByteSource(io, capture, captureMBytes * 1048576L,
+				       captureSeconds);
+	if (coalesce > 0)
+	    io = new CoalescingByteSource(io, coalesce, coalesceBytes);
+
+	return new Packetizer(name + "," + options, io, mtu);
     }
 
     // We create tossim sources using reflection to avoid depending on
@@ -53,5 +53,20 @@ public interface ByteSource
     public void open() throws IOException;
     public void close();
     public byte readByte() throws IOException;
+
+    /**
+     * Read up to len bytes into buffer, starting at off. Blocks until at
+     * least one byte is available.
+     * @return The number of bytes read (at least 1)
+     * @exception IOException If the source failed (the source is closed)
+     */
+    public int readBytes(byte[] buffer, int off, int len) throws IOException;
+
     public void writeBytes(byte[] bytes) throws IOException;
+
+    /**
+     * Write len bytes from buffer, starting at off. The bytes are copied
+     * or written before this method returns, so the buffer may be reused.
+     */
+    public void writeBytes(byte[] buffer, int off, int len) throws IOException;
 }
@@ -0,0 +1,317 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A ByteSource decorator that records every byte read and written, with
+ * nanosecond timestamps, in capture files (see CaptureFile) that can be
+ * replayed with ReplayByteSource.
+ *
+ * Records are appended to one of two buffers while a Writer thread
+ * writes the other one to disk, so reading and writing never wait for
+ * the disk. If both buffers are full, records are dropped (and counted,
+ * see getDropped). Buffered records reach the disk within FLUSH_INTERVAL
+ * ms, and all of them when the source is closed.
+ *
+ * The capture goes to fileName. A new file (fileName.1, fileName.2,
+ * ...) is started when the current one reaches maxBytes bytes or is
+ * maxSeconds seconds old (or soon after, if the writer is busy), and
+ * each time the source is reopened.
+ */
+public class CaptureByteSource implements TimedByteSource
+{
+    public static final int BUFFER_SIZE = 65536;
+    public static final int FLUSH_INTERVAL = 100;
+
+    private ByteSource io;
+    private String fileName;
+    private long maxBytes, maxNanos;
+
+    private Chunk active, spare, full;
+    private int fileIndex;
+    private long fileStart, fileSize;
+    private long dropped;
+    private Writer writer;
+
+    // A buffer of records. If newFile is set, they start a new file.
+    static class Chunk {
+	ByteBuffer data = ByteBuffer.allocate(BUFFER_SIZE);
+	String newFile;
+    }
+
+    /**
+     * Make a capturing byte source
+     * @param io The byte source to capture
+     * @param fileName The capture file
+     * @param maxBytes Start a new file when the current one reaches
+     *   maxBytes bytes (0 for no limit)
+     * @param maxSeconds Start a new file when the current one is
+     *   maxSeconds old (0 for no limit)
+     */
+    public CaptureByteSource(ByteSource io, String fileName, long maxBytes,
+			     int maxSeconds) {
+	this.io = io;
+	this.fileName = fileName;
+	this.maxBytes = maxBytes;
+	this.maxNanos = maxSeconds * 1000000000L;
+    }
+
+    public void open() throws IOException {
+	io.open();
+	synchronized (this) {
+	    active = new Chunk();
+	    spare = new Chunk();
+	    full = null;
+	    startFile(System.nanoTime());
+	    writer = new Writer();
+	    writer.start();
+	}
+    }
+
+    public void close() {
+	io.close();
+
+	Writer w;
+	synchronized (this) {
+	    w = writer;
+	    if (w == null)
+		return;
+	    // Hand the last records to the writer, then let it finish
+	    while (full != null)
+		waitUninterruptibly();
+	    if (active.data.position() > 0)
+		swap();
+	    writer = null;
+	    notifyAll();
+	}
+	try {
+	    w.join();
+	}
+	catch (InterruptedException e) { }
+    }
+
+    /**
+     * @return The number of bytes of records dropped because the disk
+     *   could not keep up
+     */
+    public synchronized long getDropped() {
+	return dropped;
+    }
+
+    public byte readByte() throws IOException {
+	byte b = io.readByte();
+	record(CaptureFile.READ, new byte[] { b }, 0, 1);
+	return b;
+    }
+
+    public int readBytes(byte[] buffer, int off, int len) throws IOException {
+	int count = io.readBytes(buffer, off, len);
+	record(CaptureFile.READ, buffer, off, count);
+	return count;
+    }
+
+    public int readBytes(byte[] buffer, int off, int len, long deadline)
+	throws IOException {
+	int count = io instanceof TimedByteSource ?
+	    ((TimedByteSource)io).readBytes(buffer, off, len, deadline) :
+	    io.readBytes(buffer, off, len); // no deadline support
+	if (count > 0)
+	    record(CaptureFile.READ, buffer, off, count);
+	return count;
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] buffer, int off, int len) throws IOException {
+	io.writeBytes(buffer, off, len);
+	record(CaptureFile.WRITE, buffer, off, len);
+    }
+
+    // Start a new file with the next records. Called with this locked.
+    private void startFile(long now) {
+	ByteBuffer data = active.data;
+
+	active.newFile = fileIndex == 0 ? fileName : fileName + "." + fileIndex;
+	fileIndex++;
+	fileStart = now;
+	data.put(CaptureFile.MAGIC);
+	data.putShort((short)CaptureFile.VERSION);
+	data.putLong(System.currentTimeMillis());
+	fileSize = CaptureFile.HEADER_SIZE;
+    }
+
+    // Give the active chunk to the writer. Returns false if the writer is
+    // still busy with the other one. Called with this locked.
+    private boolean swap() {
+	if (spare == null)
+	    return false;
+	full = active;
+	active = spare;
+	spare = null;
+	notifyAll();
+	return true;
+    }
+
+    private synchronized void record(byte direction, byte[] buffer, int off,
+				     int len) {
+	long now = System.nanoTime();
+
+	if (writer == null)
+	    return;
+
+	while (len > 0) {
+	    int count = len;
+	    if (count > BUFFER_SIZE - CaptureFile.HEADER_SIZE - CaptureFile.RECORD_HEADER_SIZE)
+		count = BUFFER_SIZE - CaptureFile.HEADER_SIZE - CaptureFile.RECORD_HEADER_SIZE;
+	    int size = CaptureFile.RECORD_HEADER_SIZE + count;
+
+	    boolean rotate = fileSize > CaptureFile.HEADER_SIZE &&
+		((maxBytes > 0 && fileSize + size > maxBytes) ||
+		 (maxNanos > 0 && now - fileStart >= maxNanos));
+	    if (rotate || size > active.data.remaining()) {
+		if (active.data.position() > 0 && !swap()) {
+		    // The writer is busy. Rotate later if the record fits.
+		    if (size > active.data.remaining()) {
+			dropped += len;
+			return;
+		    }
+		}
+		else if (rotate)
+		    startFile(now);
+	    }
+
+	    ByteBuffer data = active.data;
+	    data.put(direction);
+	    data.putLong(now - fileStart);
+	    data.putInt(count);
+	    data.put(buffer, off, count);
+	    fileSize += size;
+	    off += count;
+	    len -= count;
+	}
+    }
+
+    private void waitUninterruptibly() {
+	try {
+	    wait();
+	}
+	catch (InterruptedException e) { }
+    }
+
+    // Writes full chunks to disk, and flushes the active chunk every
+    // FLUSH_INTERVAL ms
+    class Writer extends Thread {
+	private FileOutputStream file;
+
+	Writer() {
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    for (;;) {
+		Chunk chunk;
+
+		synchronized (CaptureByteSource.this) {
+		    if (full == null && writer == this) {
+			try {
+			    CaptureByteSource.this.wait(FLUSH_INTERVAL);
+			}
+			catch (InterruptedException e) { }
+			if (full == null && active.data.position() > 0)
+			    swap();
+		    }
+		    if (full == null) {
+			if (writer != this)
+			    break;
+			continue;
+		    }
+		    chunk = full;
+		}
+
+		write(chunk);
+
+		synchronized (CaptureByteSource.this) {
+		    chunk.data.clear();
+		    chunk.newFile = null;
+		    spare = chunk;
+		    full = null;
+		    CaptureByteSource.this.notifyAll();
+		}
+	    }
+	    closeFile();
+	}
+
+	private void write(Chunk chunk) {
+	    try {
+		if (chunk.newFile != null) {
+		    closeFile();
+		    file = new FileOutputStream(chunk.newFile);
+		}
+		if (file == null)
+		    throw new IOException("no capture file");
+		file.write(chunk.data.array(), 0, chunk.data.position());
+	    }
+	    catch (IOException e) {
+		// Capture is best effort: stop writing, but don't disturb
+		// the source
+		closeFile();
+		synchronized (CaptureByteSource.this) {
+		    dropped += chunk.data.position();
+		}
+	    }
+	}
+
+	private void closeFile() {
+	    if (file != null) {
+		try {
+		    file.close();
+		}
+		catch (IOException e) { }
+		file = null;
+	    }
+	}
+    }
+}
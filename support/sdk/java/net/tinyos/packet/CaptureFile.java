@@ -0,0 +1,72 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+/**
+ * The raw byte capture file format, shared by capture (see
+ * CaptureByteSource) and replay (see ReplayByteSource).
+ *
+ * A capture file starts with a HEADER_SIZE byte header: the 6 byte
+ * MAGIC, a 2 byte version, and the 8 byte wall-clock time at which the
+ * capture started (milliseconds since the epoch). Records follow, each
+ * RECORD_HEADER_SIZE bytes of header then the data:
+ *   - 1 byte direction (READ for bytes received from the mote, WRITE for
+ *     bytes sent to it)
+ *   - 8 bytes time, in nanoseconds since the capture started
+ *   - 4 bytes data length
+ * All numbers are big-endian.
+ *
+ * Files without the magic are treated as a single READ record without
+ * timing information, so plain dumps of serial data can be replayed too.
+ */
+public final class CaptureFile
+{
+    public static final byte[] MAGIC = { 'T', 'O', 'S', 'C', 'A', 'P' };
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 13;
+
+    public static final byte READ = 0;
+    public static final byte WRITE = 1;
+
+    private CaptureFile() {
+    }
+}
@@ -0,0 +1,336 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A tcp/ip (client) byte-source using a non-blocking SocketChannel.
+ * Reads and writes go through direct buffers, and are bounded by
+ * optional timeouts, so that a half-open connection is detected rather
+ * than blocking the reader forever. TCP_NODELAY is set, as packets are
+ * written whole.
+ *
+ * Interrupting a reader makes it throw InterruptedIOException and leaves
+ * the source open, unless the interrupt lands during the (non-blocking)
+ * channel read itself: the channel is then closed, as for any NIO
+ * channel, and the read fails. Interrupting a writer closes the source,
+ * as part of the data may have been sent.
+ *
+ * Input and output streams over the channel are available for stream
+ * based protocols (see SFSource).
+ */
+public class ChannelByteSource implements TimedByteSource
+{
+    final static int BUFFER_SIZE = 4096;
+
+    private String host;
+    private int port;
+    private int connectTimeout = 10000; // in milliseconds
+    private int readTimeout; // in milliseconds, 0 for none
+
+    private SocketChannel channel;
+    private Selector readSelector, writeSelector;
+    private ByteBuffer readBuffer, writeBuffer;
+    private final Object readLock = new Object(), writeLock = new Object();
+    private volatile boolean opened;
+
+    public ChannelByteSource(String host, int port) {
+	this.host = host;
+	this.port = port;
+    }
+
+    /**
+     * Set the connection timeout (default 10s)
+     * @param millis Timeout in milliseconds, 0 for none
+     */
+    public void setConnectTimeout(int millis) {
+	connectTimeout = millis;
+    }
+
+    /**
+     * Set the read timeout (default none). When no bytes are received for
+     * this long, or a write makes no progress for this long, the read or
+     * write fails and the source is closed.
+     * @param millis Timeout in milliseconds, 0 for none
+     */
+    public void setReadTimeout(int millis) {
+	readTimeout = millis;
+    }
+
+    public void open() throws IOException {
+	channel = SocketChannel.open();
+	try {
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(true);
+	    channel.socket().setKeepAlive(true);
+	    readSelector = Selector.open();
+	    writeSelector = Selector.open();
+	    readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	    readBuffer.flip(); // empty
+	    writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	    InetSocketAddress address = new InetSocketAddress(host, port);
+	    if (address.isUnresolved())
+		throw new UnknownHostException(host);
+	    if (!channel.connect(address)) {
+		SelectionKey key = channel.register(writeSelector, SelectionKey.OP_CONNECT);
+		if (writeSelector.select(connectTimeout) == 0 ||
+		    !channel.finishConnect())
+		    throw new IOException("connect to " + host + ":" + port + " timed out");
+		writeSelector.selectedKeys().clear();
+		key.interestOps(SelectionKey.OP_WRITE);
+	    }
+	    else
+		channel.register(writeSelector, SelectionKey.OP_WRITE);
+	    channel.register(readSelector, SelectionKey.OP_READ);
+	}
+	catch (IOException e) {
+	    closeChannel();
+	    throw e;
+	}
+	catch (RuntimeException e) {
+	    // e.g., a port number out of range
+	    closeChannel();
+	    throw new IOException(host + ":" + port + ": " + e.getMessage());
+	}
+	opened = true;
+    }
+
+    private void closeChannel() {
+	// Closing the selectors wakes up any blocked reader or writer
+	try {
+	    if (readSelector != null)
+		readSelector.close();
+	    if (writeSelector != null)
+		writeSelector.close();
+	    channel.close();
+	}
+	catch (IOException e) { }
+    }
+
+    public void close() {
+	if (opened) {
+	    opened = false;
+	    closeChannel();
+	}
+    }
+
+    // Convert a timeout in ms (0 for forever) to a deadline
+    private static long deadline(int timeout) {
+	return timeout == 0 ? 0 : System.currentTimeMillis() + timeout;
+    }
+
+    // Wait until selector is ready or deadline (0 for never) passes.
+    // Returns false on timeout.
+    private boolean await(Selector selector, long deadline) throws IOException {
+	for (;;) {
+	    if (!opened)
+		throw new IOException("closed");
+	    // An interrupt wakes up select, but leaves the channel open
+	    if (Thread.interrupted())
+		throw new InterruptedIOException("interrupted");
+	    long left = 0;
+	    if (deadline != 0) {
+		left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+		    return false;
+	    }
+	    if (selector.select(left) > 0) {
+		selector.selectedKeys().clear();
+		return true;
+	    }
+	}
+    }
+
+    public byte readByte() throws IOException {
+	byte[] b = new byte[1];
+	readBytes(b, 0, 1);
+	return b[0];
+    }
+
+    /**
+     * Wait until input is available or deadline passes. The read timeout
+     * still applies, and fails the source if it expires first.
+     * @param deadline Time (System.currentTimeMillis) at which to give up,
+     *   or 0 to wait forever
+     * @return false if deadline passed
+     * @exception InterruptedIOException If the calling thread was
+     *   interrupted (the source stays open)
+     * @exception IOException If the source failed (the source is closed)
+     */
+    public boolean waitForInput(long deadline) throws IOException {
+	synchronized (readLock) {
+	    if (!opened)
+		throw new IOException("not open");
+
+	    long failAt = deadline(readTimeout);
+	    boolean timed = deadline != 0 && (failAt == 0 || deadline < failAt);
+	    try {
+		while (!readBuffer.hasRemaining()) {
+		    // A channel operation started with the interrupt flag set
+		    // closes the channel (ClosedByInterruptException)
+		    if (Thread.interrupted())
+			throw new InterruptedIOException("interrupted");
+		    readBuffer.clear();
+		    int count = channel.read(readBuffer);
+		    readBuffer.flip();
+
+		    if (count < 0)
+			throw new IOException("end-of-stream");
+		    if (count == 0 && !await(readSelector, timed ? deadline : failAt)) {
+			if (timed)
+			    return false;
+			throw new IOException("read timed out");
+		    }
+		}
+		return true;
+	    }
+	    catch (InterruptedIOException e) {
+		throw e;
+	    }
+	    catch (ClosedSelectorException e) {
+		close();
+		throw new IOException("closed");
+	    }
+	    catch (IOException e) {
+		close();
+		throw e;
+	    }
+	}
+    }
+
+    public int readBytes(byte[] buffer, int off, int len) throws IOException {
+	return readBytes(buffer, off, len, 0);
+    }
+
+    public int readBytes(byte[] buffer, int off, int len, long deadline)
+	throws IOException {
+	synchronized (readLock) {
+	    if (!waitForInput(deadline))
+		return 0;
+
+	    int count = Math.min(len, readBuffer.remaining());
+	    readBuffer.get(buffer, off, count);
+	    return count;
+	}
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] buffer, int off, int len) throws IOException {
+	synchronized (writeLock) {
+	    if (!opened)
+		throw new IOException("not open");
+
+	    try {
+		while (len > 0) {
+		    int count = Math.min(len, writeBuffer.capacity());
+		    writeBuffer.clear();
+		    writeBuffer.put(buffer, off, count);
+		    writeBuffer.flip();
+		    off += count;
+		    len -= count;
+
+		    // Wait for the peer if the socket buffer is full
+		    while (writeBuffer.hasRemaining())
+			if (channel.write(writeBuffer) == 0 &&
+			    !await(writeSelector, deadline(readTimeout)))
+			    throw new IOException("write timed out");
+		}
+	    }
+	    catch (ClosedSelectorException e) {
+		close();
+		throw new IOException("closed");
+	    }
+	    catch (IOException e) {
+		close();
+		throw e;
+	    }
+	}
+    }
+
+    /**
+     * @return An input stream reading from this source
+     */
+    public InputStream getInputStream() {
+	return new InputStream() {
+		public int read() throws IOException {
+		    return readByte() & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+		    if (len == 0)
+			return 0;
+		    return readBytes(b, off, len);
+		}
+
+		public void close() {
+		    ChannelByteSource.this.close();
+		}
+	    };
+    }
+
+    /**
+     * @return An output stream writing to this source
+     */
+    public OutputStream getOutputStream() {
+	return new OutputStream() {
+		public void write(int b) throws IOException {
+		    writeBytes(new byte[] { (byte)b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+		    writeBytes(b, off, len);
+		}
+
+		public void close() {
+		    ChannelByteSource.this.close();
+		}
+	    };
+    }
+}
@@ -0,0 +1,214 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+
+package net.tinyos.packet;
+
+import java.io.*;
+
+/**
+ * A ByteSource decorator that coalesces writes: frames written in quick
+ * succession are copied into a buffer and sent to the underlying source
+ * in a single writeBytes call (one system call for serial ports, one tcp
+ * segment for network sources).
+ *
+ * Latency is bounded: a write to an idle source (nothing written for
+ * the coalescing window) is sent immediately, and buffered bytes are
+ * sent at most window microseconds after they were written, or as soon
+ * as byteBudget bytes are buffered. writeBytesNow sends at once, for
+ * frames the other side is waiting for (e.g., acknowledgements). Write
+ * errors from buffered data are reported by the next writeBytes call.
+ * Closing the source sends any buffered bytes first.
+ */
+public class CoalescingByteSource implements TimedByteSource
+{
+    private ByteSource io;
+    private long window; // in nanoseconds
+    private byte[] buffer;
+    private int buffered;
+    private long firstBuffered, lastWrite;
+    private IOException writeError;
+    private Flusher flusher;
+    private boolean opened;
+
+    /**
+     * Make a coalescing byte source
+     * @param io The byte source to write to
+     * @param windowMicros How long bytes may be buffered, in microseconds
+     * @param byteBudget How many bytes may be buffered
+     */
+    public CoalescingByteSource(ByteSource io, int windowMicros, int byteBudget) {
+	if (windowMicros <= 0 || byteBudget <= 0)
+	    throw new IllegalArgumentException("bad coalescing window or budget");
+	this.io = io;
+	this.window = windowMicros * 1000L;
+	buffer = new byte[byteBudget];
+    }
+
+    public void open() throws IOException {
+	io.open();
+	synchronized (this) {
+	    opened = true;
+	    buffered = 0;
+	    writeError = null;
+	    lastWrite = System.nanoTime() - window;
+	    flusher = new Flusher();
+	    flusher.start();
+	}
+    }
+
+    public void close() {
+	synchronized (this) {
+	    if (opened)
+		try {
+		    flush();
+		}
+		catch (IOException e) {
+		    // we're closing anyway
+		}
+	    opened = false;
+	    buffered = 0;
+	    notifyAll();
+	}
+	io.close();
+    }
+
+    public byte readByte() throws IOException {
+	return io.readByte();
+    }
+
+    public int readBytes(byte[] buffer, int off, int len) throws IOException {
+	return io.readBytes(buffer, off, len);
+    }
+
+    public int readBytes(byte[] buffer, int off, int len, long deadline)
+	throws IOException {
+	return io instanceof TimedByteSource ?
+	    ((TimedByteSource)io).readBytes(buffer, off, len, deadline) :
+	    io.readBytes(buffer, off, len); // no deadline support
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    public synchronized void writeBytes(byte[] bytes, int off, int len)
+	throws IOException {
+	if (!opened)
+	    throw new IOException("not open");
+	if (writeError != null) {
+	    IOException e = writeError;
+	    writeError = null;
+	    throw e;
+	}
+
+	long now = System.nanoTime();
+	if (buffered + len > buffer.length)
+	    flush();
+	if (buffered == 0 && (len >= buffer.length || now - lastWrite >= window)) {
+	    // Too big to buffer, or the source is idle
+	    lastWrite = now;
+	    io.writeBytes(bytes, off, len);
+	    return;
+	}
+
+	System.arraycopy(bytes, off, buffer, buffered, len);
+	if (buffered == 0) {
+	    firstBuffered = now;
+	    notifyAll();
+	}
+	buffered += len;
+	if (buffered == buffer.length)
+	    flush();
+    }
+
+    /**
+     * Write len bytes from bytes, starting at off, and send them (after
+     * any buffered bytes) without waiting for the coalescing window
+     */
+    public synchronized void writeBytesNow(byte[] bytes, int off, int len)
+	throws IOException {
+	writeBytes(bytes, off, len);
+	flush();
+    }
+
+    // Write out the buffered bytes. Called with this locked.
+    private void flush() throws IOException {
+	if (buffered > 0) {
+	    int count = buffered;
+	    buffered = 0;
+	    lastWrite = System.nanoTime();
+	    io.writeBytes(buffer, 0, count);
+	}
+    }
+
+    // Sends buffered bytes once they've waited for the coalescing window
+    class Flusher extends Thread {
+	Flusher() {
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    synchronized (CoalescingByteSource.this) {
+		while (opened && flusher == this) {
+		    try {
+			if (buffered == 0)
+			    CoalescingByteSource.this.wait();
+			else {
+			    long left = firstBuffered + window - System.nanoTime();
+			    if (left > 0)
+				CoalescingByteSource.this.wait(left / 1000000,
+							       (int)(left % 1000000));
+			    else {
+				try {
+				    flush();
+				}
+				catch (IOException e) {
+				    writeError = e;
+				}
+			    }
+			}
+		    }
+		    catch (InterruptedException e) { }
+		}
+	    }
+	}
+    }
+}
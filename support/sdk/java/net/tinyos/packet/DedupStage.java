@@ -0,0 +1,90 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.util.*;
+
+/**
+ * A pipeline stage which drops packets identical to one passed less
+ * than window ms earlier (e.g., the same radio packet forwarded twice).
+ * Packets are recognised by a hash, and at most MAX_ENTRIES are
+ * remembered.
+ */
+public class DedupStage implements PacketStage
+{
+    private static final int MAX_ENTRIES = 4096;
+
+    private long window;
+    // Recently passed packets, oldest first: hash -> time passed
+    private LinkedHashMap<Long, Long> seen = new LinkedHashMap<Long, Long>();
+
+    /**
+     * @param window How long passed packets are remembered (ms)
+     */
+    public DedupStage(long window) {
+	if (window < 1)
+	    throw new IllegalArgumentException("bad window " + window);
+	this.window = window;
+    }
+
+    public boolean process(PacketView packet) {
+	long now = System.currentTimeMillis();
+
+	// Forget packets which are too old, or too many
+	Iterator<Long> oldest = seen.values().iterator();
+	while (oldest.hasNext()) {
+	    long time = oldest.next().longValue();
+	    if (now - time < window && seen.size() < MAX_ENTRIES)
+		break;
+	    oldest.remove();
+	}
+
+	Long key = Long.valueOf(packet.hash());
+	if (seen.containsKey(key))
+	    return false;
+	seen.put(key, Long.valueOf(now));
+	return true;
+    }
+
+    public String toString() {
+	return "dedup=" + window;
+    }
+}
@@ -0,0 +1,421 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A packet source which fails over between an ordered list of packet
+ * sources (e.g., motes on different USB ports). The first healthy source
+ * in the list is active: its packets are read, and packets are written
+ * to it. The other sources are kept open as hot standbys, so that when
+ * the active source fails, the next healthy source takes over at once.
+ * When a source earlier in the list recovers, it becomes active again.
+ * Packets received by standby sources are discarded.
+ *
+ * Each source is watched by a thread of its own, which reads from it to
+ * check its health (a source is healthy while it is open and reads don't
+ * fail; use the readtimeout option to also fail sf and network sources
+ * which go quiet). Failed sources are reopened with exponential backoff,
+ * from BACKOFF_MIN to BACKOFF_MAX ms, with random jitter so that sources
+ * sharing a failure don't retry in lockstep.
+ *
+ * Every switch of active source and every recovery of a failed source
+ * is recorded (see <code>getEvents</code>). The failover source itself
+ * only fails if none of its sources can be opened.
+ *
+ * Failover sources are built using makeArgsFailover or makeFailover in
+ * BuildSource.
+ */
+public class FailoverSource extends AbstractSource
+{
+    // How long each health-check read waits (ms)
+    private static final int CHECK_INTERVAL = 1000;
+
+    // Reopen delays, doubling after each failed attempt (ms)
+    private static final int BACKOFF_MIN = 50;
+    private static final int BACKOFF_MAX = 5000;
+
+    private static final int QUEUE_SIZE = 1024;
+    private static final int MAX_EVENTS = 256;
+
+    private PacketSource[] sources;
+    private volatile Thread[] watchers;
+    private PacketQueue received;
+    private volatile boolean running;
+
+    // Protected by state's lock (not this object's: AbstractSource holds
+    // that during writes)
+    private final Object state = new Object();
+    private boolean[] healthy;
+    private int active; // the active source, or -1 for none
+    private long outageStart; // when there last was no active source
+    private Vector<Event> events = new Vector<Event>();
+
+    private Random random = new Random();
+
+    /**
+     * A failover or recovery, see <code>getEvents</code>
+     */
+    public static class Event {
+	/** The active source changed */
+	public final static int FAILOVER = 0;
+	/** A failed source was reopened */
+	public final static int RECOVERY = 1;
+
+	private int kind;
+	private long time;
+	private String from, to;
+	private long duration;
+
+	Event(int kind, long time, String from, String to, long duration) {
+	    this.kind = kind;
+	    this.time = time;
+	    this.from = from;
+	    this.to = to;
+	    this.duration = duration;
+	}
+
+	/**
+	 * @return FAILOVER or RECOVERY
+	 */
+	public int getKind() {
+	    return kind;
+	}
+
+	/**
+	 * @return When the event happened (System.currentTimeMillis)
+	 */
+	public long getTime() {
+	    return time;
+	}
+
+	/**
+	 * @return For FAILOVER, the previously active source (null if
+	 *   there was none), for RECOVERY the source that recovered
+	 */
+	public String getFrom() {
+	    return from;
+	}
+
+	/**
+	 * @return For FAILOVER, the newly active source (null if there is
+	 *   none), for RECOVERY null
+	 */
+	public String getTo() {
+	    return to;
+	}
+
+	/**
+	 * @return For FAILOVER, how long there was no active source (ms,
+	 *   0 if a standby took over at once), for RECOVERY how long the
+	 *   source was down (ms)
+	 */
+	public long getDuration() {
+	    return duration;
+	}
+
+	public String toString() {
+	    if (kind == FAILOVER)
+		return new Date(time) + ": failover from " + from + " to " +
+		    to + " (" + duration + "ms without a source)";
+	    else
+		return new Date(time) + ": " + from + " recovered after " +
+		    duration + "ms";
+	}
+    }
+
+    /**
+     * Make a failover source
+     * @param sources The packet sources, in order of preference
+     */
+    FailoverSource(PacketSource[] sources) {
+	super(failoverName(sources));
+	if (sources.length < 1)
+	    throw new IllegalArgumentException("no sources");
+	this.sources = sources;
+	healthy = new boolean[sources.length];
+    }
+
+    private static String failoverName(PacketSource[] sources) {
+	String name = "failover@";
+	for (int i = 0; i < sources.length; i++)
+	    name += (i > 0 ? "+" : "") + sources[i].getName();
+	return name;
+    }
+
+    /**
+     * @return The active source, or null if no source is healthy
+     */
+    public PacketSource getActiveSource() {
+	synchronized (state) {
+	    return active < 0 ? null : sources[active];
+	}
+    }
+
+    /**
+     * @return The recorded failovers and recoveries, oldest first (only
+     *   the most recent MAX_EVENTS are kept)
+     */
+    public Event[] getEvents() {
+	synchronized (events) {
+	    Event[] copy = new Event[events.size()];
+	    events.copyInto(copy);
+	    return copy;
+	}
+    }
+
+    private void record(Event event) {
+	message(name + ": " + event);
+	synchronized (events) {
+	    if (events.size() == MAX_EVENTS)
+		events.removeElementAt(0);
+	    events.addElement(event);
+	}
+    }
+
+    protected void openSource() throws IOException {
+	// Succeed if any source opens, the others are retried later
+	IOException error = null;
+	for (int i = 0; i < sources.length; i++) {
+	    try {
+		sources[i].open(messages);
+		healthy[i] = true;
+	    }
+	    catch (IOException e) {
+		healthy[i] = false;
+		message(sources[i].getName() + ": " + e.getMessage());
+		error = e;
+	    }
+	}
+	synchronized (state) {
+	    active = firstHealthy();
+	    if (active < 0)
+		throw error;
+	}
+
+	received = new PacketQueue(QUEUE_SIZE, PacketQueue.DROP_OLDEST);
+	running = true;
+	watchers = new Thread[sources.length];
+	for (int i = 0; i < sources.length; i++) {
+	    final int source = i;
+	    final boolean open = healthy[i];
+	    watchers[i] = new Thread(sources[i].getName()) {
+		    public void run() {
+			watch(source, open);
+		    }
+		};
+	    watchers[i].setDaemon(true);
+	    watchers[i].start();
+	}
+    }
+
+    protected void closeSource() throws IOException {
+	running = false;
+	for (int i = 0; i < sources.length; i++) {
+	    watchers[i].interrupt();
+	    sources[i].close();
+	}
+	received.close();
+    }
+
+    private int firstHealthy() {
+	for (int i = 0; i < sources.length; i++)
+	    if (healthy[i])
+		return i;
+	return -1;
+    }
+
+    // The delay before reopen attempt number attempt (from 0)
+    private long backoff(int attempt) {
+	long delay = BACKOFF_MAX;
+	if (attempt < 20)
+	    delay = Math.min(BACKOFF_MAX, (long)BACKOFF_MIN << attempt);
+	// Wait between half and all of delay
+	synchronized (random) {
+	    return delay / 2 + (long)(random.nextDouble() * (delay / 2));
+	}
+    }
+
+    // True while the calling watcher should keep going (false once the
+    // failover source is closed, even if it's reopened since)
+    private boolean watching(int source) {
+	return running && watchers[source] == Thread.currentThread();
+    }
+
+    private void watch(int source, boolean open) {
+	PacketSource watched = sources[source];
+	long failedAt = System.currentTimeMillis();
+	int attempt = 0;
+
+	while (watching(source)) {
+	    if (!open) {
+		try {
+		    Thread.sleep(backoff(attempt++));
+		    watched.open(messages);
+		    open = true;
+		    attempt = 0;
+		    if (watching(source))
+			recovered(source, failedAt);
+		    else
+			watched.close(); // we lost a race with closeSource
+		}
+		catch (InterruptedException e) {
+		}
+		catch (IOException e) {
+		}
+		catch (RuntimeException e) {
+		    // A source that can't be reopened mustn't kill the
+		    // watcher: keep trying, with backoff
+		    message(watched.getName() + ": reopen failed (" + e + ")");
+		}
+		continue;
+	    }
+
+	    try {
+		byte[] packet = readTimed(watched, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		if (packet != null)
+		    deliver(source, packet);
+	    }
+	    catch (InterruptedIOException e) {
+		// closeSource, the loop condition takes care of it
+	    }
+	    catch (IOException e) {
+		open = false;
+		failedAt = System.currentTimeMillis();
+		lost(source, failedAt, e.getMessage());
+	    }
+	    catch (RuntimeException e) {
+		// Treated as a failure of the source, which is closed so
+		// that it can be reopened
+		open = false;
+		failedAt = System.currentTimeMillis();
+		try {
+		    watched.close();
+		}
+		catch (IOException ce) { }
+		lost(source, failedAt, e.toString());
+	    }
+	}
+    }
+
+    // Called by the watcher of a source that just failed
+    private void lost(int source, long failedAt, String reason) {
+	if (watching(source)) {
+	    message(sources[source].getName() + ": " + reason);
+	    failed(source, failedAt);
+	}
+    }
+
+    private void deliver(int source, byte[] packet) {
+	// Only the active source's watcher offers packets, so the queue
+	// has one producer at a time
+	synchronized (state) {
+	    if (source == active)
+		received.offer(packet);
+	}
+    }
+
+    private void failed(int source, long now) {
+	synchronized (state) {
+	    healthy[source] = false;
+	    if (source == active)
+		switchTo(firstHealthy(), now);
+	}
+    }
+
+    private void recovered(int source, long failedAt) {
+	long now = System.currentTimeMillis();
+
+	synchronized (state) {
+	    healthy[source] = true;
+	    record(new Event(Event.RECOVERY, now, sources[source].getName(),
+			     null, now - failedAt));
+	    if (active < 0 || source < active)
+		switchTo(source, now);
+	}
+    }
+
+    private void switchTo(int source, long now) {
+	String from = active < 0 ? null : sources[active].getName();
+	String to = source < 0 ? null : sources[source].getName();
+	long outage = active < 0 ? now - outageStart : 0;
+
+	active = source;
+	if (active < 0)
+	    outageStart = now;
+	record(new Event(Event.FAILOVER, now, from, to, outage));
+    }
+
+    protected byte[] readSourcePacket() throws IOException {
+	return received.take(0);
+    }
+
+    protected byte[] readSourcePacket(long deadline) throws IOException {
+	return received.take(deadline);
+    }
+
+    protected boolean writeSourcePacket(byte[] packet) throws IOException {
+	// Try the active source, then the other healthy ones in order. A
+	// failed write closes the source, its watcher handles the failover.
+	for (int i = 0; i < sources.length; i++) {
+	    PacketSource source;
+
+	    synchronized (state) {
+		int a = active;
+		if (a < 0)
+		    return false;
+		int index = (a + i) % sources.length;
+		if (!healthy[index])
+		    continue;
+		source = sources[index];
+	    }
+	    try {
+		return source.writePacket(packet);
+	    }
+	    catch (IOException e) {
+	    }
+	}
+	return false;
+    }
+}
@@ -0,0 +1,97 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+/**
+ * A pipeline stage which only passes serial AM packets whose header
+ * field (AM type, source, destination or group) has one of a given set
+ * of values. Other packets are dropped.
+ */
+public class FilterStage implements PacketStage
+{
+    public final static int TYPE = 0;
+    public final static int SOURCE = 1;
+    public final static int DESTINATION = 2;
+    public final static int GROUP = 3;
+
+    // Names in packet source strings, indexed by field
+    final static String[] NAMES = { "amtype", "src", "dest", "group" };
+
+    private int field;
+    private int[] values;
+
+    /**
+     * Make a header filter
+     * @param field The header field to check (TYPE, SOURCE, DESTINATION
+     *   or GROUP)
+     * @param values The values to pass
+     */
+    public FilterStage(int field, int[] values) {
+	if (field < TYPE || field > GROUP)
+	    throw new IllegalArgumentException("bad field " + field);
+	this.field = field;
+	this.values = values.clone();
+    }
+
+    public boolean process(PacketView packet) {
+	if (!packet.isAM())
+	    return false;
+
+	int value;
+	switch (field) {
+	case TYPE: value = packet.getType(); break;
+	case SOURCE: value = packet.getSource(); break;
+	case DESTINATION: value = packet.getDestination(); break;
+	default: value = packet.getGroup(); break;
+	}
+	for (int i = 0; i < values.length; i++)
+	    if (values[i] == value)
+		return true;
+	return false;
+    }
+
+    public String toString() {
+	String s = NAMES[field] + "=";
+	for (int i = 0; i < values.length; i++)
+	    s += (i > 0 ? "," : "") + values[i];
+	return s;
+    }
+}
@@ -0,0 +1,175 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.*;
+import net.tinyos.comm.ByteQueue;
+
+/**
+ * An in-memory byte source, for testing the serial protocol without
+ * hardware. As with MemorySource, the first two byte sources opened with
+ * the same name are connected: bytes written to one are read from the
+ * other. Writers block while the other side's buffer is full.
+ */
+public class MemoryByteSource implements TimedByteSource
+{
+    public static final int PIPE_SIZE = 65536;
+
+    // Connected endpoints, by name
+    private static Hashtable<String, Link> links = new Hashtable<String, Link>();
+
+    static class Link {
+	ByteQueue[] pipes = new ByteQueue[2];
+	boolean[] used = new boolean[2];
+
+	Link() {
+	    pipes[0] = new ByteQueue(PIPE_SIZE);
+	    pipes[1] = new ByteQueue(PIPE_SIZE);
+	}
+    }
+
+    private String linkName;
+    private ByteQueue in, out;
+    private Link link;
+    private int side;
+    private volatile boolean opened;
+
+    public MemoryByteSource(String linkName) {
+	this.linkName = linkName;
+    }
+
+    public void open() throws IOException {
+	synchronized (links) {
+	    Link l = links.get(linkName);
+	    if (l == null) {
+		l = new Link();
+		links.put(linkName, l);
+	    }
+	    if (l.used[0] && l.used[1])
+		throw new IOException(linkName + " already has two endpoints");
+	    side = l.used[0] ? 1 : 0;
+	    l.used[side] = true;
+	    link = l;
+	    in = l.pipes[side];
+	    out = l.pipes[1 - side];
+	}
+	opened = true;
+    }
+
+    public void close() {
+	if (!opened)
+	    return;
+	opened = false;
+	synchronized (links) {
+	    link.used[side] = false;
+	    if (!link.used[1 - side])
+		links.remove(linkName);
+	}
+	// Wake up our blocked reader or writer
+	synchronized (in) {
+	    in.notifyAll();
+	}
+	synchronized (out) {
+	    out.notifyAll();
+	}
+    }
+
+    public byte readByte() throws IOException {
+	byte[] b = new byte[1];
+	readBytes(b, 0, 1);
+	return b[0];
+    }
+
+    public int readBytes(byte[] buffer, int off, int len) throws IOException {
+	return readBytes(buffer, off, len, 0);
+    }
+
+    public int readBytes(byte[] buffer, int off, int len, long deadline)
+	throws IOException {
+	synchronized (in) {
+	    try {
+		while (opened && in.available() == 0) {
+		    long left = 0;
+		    if (deadline != 0) {
+			left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+			    return 0;
+		    }
+		    in.wait(left);
+		}
+	    }
+	    catch (InterruptedException e) {
+		throw new InterruptedIOException("interrupted");
+	    }
+	    if (!opened)
+		throw new IOException("closed");
+	    int count = in.pop_front(buffer, off, len);
+	    in.notifyAll();
+	    return count;
+	}
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] buffer, int off, int len) throws IOException {
+	synchronized (out) {
+	    while (len > 0) {
+		try {
+		    while (opened && out.num_free() == 0)
+			out.wait();
+		}
+		catch (InterruptedException e) {
+		    close();
+		    throw new IOException("interrupted");
+		}
+		if (!opened)
+		    throw new IOException("closed");
+		int count = out.push_back(buffer, off, len);
+		off += count;
+		len -= count;
+		out.notifyAll();
+	    }
+	}
+    }
+}
@@ -0,0 +1,153 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An in-memory packet source, for testing without hardware. The first
+ * two sources opened with the same name are connected: packets written
+ * to one are read from the other. Each direction is a PacketQueue that
+ * blocks the writer when full, so no packets are lost. Closing a source
+ * makes its blocked writer fail.
+ *
+ * Packets written before the other endpoint is opened are kept for it.
+ * See also MemoryByteSource, which connects two Packetizers.
+ */
+public class MemorySource extends AbstractSource
+{
+    public static final int QUEUE_SIZE = 4096;
+
+    // Connected endpoints, by name
+    private static Hashtable<String, Link> links = new Hashtable<String, Link>();
+
+    static class Link {
+	PacketQueue[] queues = new PacketQueue[2];
+	boolean[] used = new boolean[2];
+
+	Link() {
+	    queues[0] = new PacketQueue(QUEUE_SIZE, PacketQueue.BLOCK);
+	    queues[1] = new PacketQueue(QUEUE_SIZE, PacketQueue.BLOCK);
+	}
+    }
+
+    private String linkName;
+    private Link link;
+    private int side;
+
+    // Writers may block on a full queue, so they are serialized by
+    // writeLock rather than the source's monitor, which close() needs.
+    // writable is cleared (and the writer woken) by close().
+    private final Object writeLock = new Object();
+    private volatile AtomicBoolean writable;
+
+    /**
+     * Packet sources are built using the makeXXX methods in BuildSource
+     */
+    MemorySource(String linkName) {
+	super("mem@" + linkName);
+	this.linkName = linkName;
+    }
+
+    protected void openSource() throws IOException {
+	synchronized (links) {
+	    Link l = links.get(linkName);
+	    if (l == null) {
+		l = new Link();
+		links.put(linkName, l);
+	    }
+	    if (l.used[0] && l.used[1])
+		throw new IOException(name + " already has two endpoints");
+	    side = l.used[0] ? 1 : 0;
+	    l.used[side] = true;
+	    link = l;
+	}
+	writable = new AtomicBoolean(true);
+    }
+
+    protected void closeSource() {
+	writable.set(false);
+	synchronized (links) {
+	    link.queues[1 - side].wakeProducer();
+	    link.used[side] = false;
+	    // Wake up our reader, and the other side's writer if it is
+	    // blocked on us. Packets still queued for us are lost.
+	    link.queues[side].close();
+	    link.queues[side] = new PacketQueue(QUEUE_SIZE, PacketQueue.BLOCK);
+	    if (!link.used[1 - side])
+		links.remove(linkName);
+	}
+    }
+
+    protected byte[] readSourcePacket() throws IOException {
+	return link.queues[side].take(0);
+    }
+
+    protected byte[] readSourcePacket(long deadline) throws IOException {
+	return link.queues[side].take(deadline);
+    }
+
+    // Not synchronized, see writeLock
+    public boolean writePacket(byte[] packet) throws IOException {
+	failIfClosed();
+	return writeSourcePacket(packet);
+    }
+
+    protected boolean writeSourcePacket(byte[] packet) throws IOException {
+	synchronized (writeLock) {
+	    PacketQueue queue;
+	    AtomicBoolean open;
+	    synchronized (this) {
+		failIfClosed();
+		queue = link.queues[1 - side];
+		open = writable;
+	    }
+	    // Our caller may reuse packet
+	    if (queue.offer(packet.clone(), open))
+		return true;
+	    if (!open.get())
+		throw new IOException("closed");
+	    return false;
+	}
+    }
+}
@@ -0,0 +1,403 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A packet source which merges the packets received by several gateways
+ * (e.g., base stations in overlapping radio range) into one packet
+ * stream, suppressing the duplicates that arrive when several gateways
+ * hear the same radio packet.
+ *
+ * Each gateway is read by a thread of its own, so a slow or failed
+ * gateway doesn't hold up the others. Failed gateways are reopened
+ * every RETRY_INTERVAL ms while the merge source is open (run with
+ * -verify to check this with framed in-memory gateways).
+ *
+ * Duplicates are recognised by a hash of the whole packet (for AM
+ * packets, this covers the source, AM type and payload, including any
+ * sequence number), remembered for a time window (default 1s) in a
+ * bounded table. A packet is a duplicate if another gateway already
+ * received it within the window. When the same gateway receives a packet
+ * again (e.g., a repeated reading), it is a new packet.
+ *
+ * Merged packets wait in a PacketQueue which drops the oldest packet
+ * when full. Written packets go to the first gateway which is open.
+ * Per-gateway reception counts are available through
+ * <code>getGatewayStats</code>.
+ *
+ * Merge sources are built using makeArgsMerge or makeMerge in BuildSource.
+ */
+public class MergeSource extends AbstractSource
+{
+    // How often a failed gateway is reopened (ms)
+    private static final int RETRY_INTERVAL = 2000;
+
+    private static final int QUEUE_SIZE = 1024;
+
+    private PacketSource[] gateways;
+    private GatewayStats[] stats;
+    private volatile Thread[] readers;
+    private PacketQueue received;
+    private volatile boolean running;
+
+    private long window;
+    private int maxEntries;
+    // Recently received packets, oldest first: packet key -> Seen
+    private LinkedHashMap<Long, Seen> seen = new LinkedHashMap<Long, Seen>();
+
+    static class Seen {
+	long time; // when the packet was first received
+	long gateways; // bitmask of the gateways which received it
+
+	Seen(long time, long gateways) {
+	    this.time = time;
+	    this.gateways = gateways;
+	}
+    }
+
+    /**
+     * Reception counts for one gateway of a MergeSource
+     */
+    public static class GatewayStats {
+	private PacketSource gateway;
+	final AtomicLong received = new AtomicLong();
+	final AtomicLong first = new AtomicLong();
+	final AtomicLong duplicates = new AtomicLong();
+	final AtomicLong failures = new AtomicLong();
+
+	GatewayStats(PacketSource gateway) {
+	    this.gateway = gateway;
+	}
+
+	/**
+	 * @return The gateway's packet source
+	 */
+	public PacketSource getGateway() {
+	    return gateway;
+	}
+
+	/**
+	 * @return The number of packets the gateway received
+	 */
+	public long getReceived() {
+	    return received.get();
+	}
+
+	/**
+	 * @return The number of packets the gateway received before any
+	 *   other gateway (these are the merged packets)
+	 */
+	public long getFirst() {
+	    return first.get();
+	}
+
+	/**
+	 * @return The number of packets the gateway received after some
+	 *   other gateway (these are suppressed)
+	 */
+	public long getDuplicates() {
+	    return duplicates.get();
+	}
+
+	/**
+	 * @return The number of times the gateway failed, or could not be
+	 *   opened
+	 */
+	public long getFailures() {
+	    return failures.get();
+	}
+
+	public String toString() {
+	    return gateway.getName() + ": " + received + " received, " +
+		first + " first, " + duplicates + " duplicates, " +
+		failures + " failures";
+	}
+    }
+
+    /**
+     * Make a merge source
+     * @param gateways The packet sources to merge (at most 64)
+     * @param window How long received packets are remembered to suppress
+     *   duplicates (ms)
+     * @param maxEntries How many received packets are remembered at most
+     */
+    MergeSource(PacketSource[] gateways, long window, int maxEntries) {
+	super(mergeName(gateways));
+	if (gateways.length < 1 || gateways.length > 64)
+	    throw new IllegalArgumentException("bad gateway count " + gateways.length);
+	this.gateways = gateways;
+	this.window = window;
+	this.maxEntries = maxEntries;
+	stats = new GatewayStats[gateways.length];
+	for (int i = 0; i < gateways.length; i++)
+	    stats[i] = new GatewayStats(gateways[i]);
+    }
+
+    private static String mergeName(PacketSource[] gateways) {
+	String name = "merge@";
+	for (int i = 0; i < gateways.length; i++)
+	    name += (i > 0 ? "+" : "") + gateways[i].getName();
+	return name;
+    }
+
+    /**
+     * @return The reception counts of each gateway, in the order the
+     *   gateways were given
+     */
+    public GatewayStats[] getGatewayStats() {
+	return stats.clone();
+    }
+
+    protected void openSource() throws IOException {
+	// Succeed if any gateway opens, the others are retried later
+	IOException error = null;
+	int count = 0;
+	final boolean[] open = new boolean[gateways.length];
+	for (int i = 0; i < gateways.length; i++) {
+	    try {
+		gateways[i].open(messages);
+		open[i] = true;
+		count++;
+	    }
+	    catch (IOException e) {
+		stats[i].failures.incrementAndGet();
+		message(gateways[i].getName() + ": " + e.getMessage());
+		error = e;
+	    }
+	}
+	if (count == 0)
+	    throw error;
+
+	synchronized (seen) {
+	    seen.clear();
+	}
+	received = new PacketQueue(QUEUE_SIZE, PacketQueue.DROP_OLDEST);
+	running = true;
+	readers = new Thread[gateways.length];
+	for (int i = 0; i < gateways.length; i++) {
+	    final int gateway = i;
+	    readers[i] = new Thread(gateways[i].getName()) {
+		    public void run() {
+			readGateway(gateway, open[gateway]);
+		    }
+		};
+	    readers[i].setDaemon(true);
+	    readers[i].start();
+	}
+    }
+
+    protected void closeSource() throws IOException {
+	running = false;
+	for (int i = 0; i < gateways.length; i++) {
+	    readers[i].interrupt();
+	    gateways[i].close();
+	}
+	received.close();
+    }
+
+    // True while the calling reader should keep going (false once the
+    // merge source is closed, even if it's reopened since)
+    private boolean reading(int gateway) {
+	return running && readers[gateway] == Thread.currentThread();
+    }
+
+    private void readGateway(int gateway, boolean open) {
+	PacketSource source = gateways[gateway];
+
+	while (reading(gateway)) {
+	    if (!open) {
+		// Reopen a failed gateway once in a while
+		try {
+		    Thread.sleep(RETRY_INTERVAL);
+		    source.open(messages);
+		    open = true;
+		    if (!reading(gateway))
+			source.close(); // we lost a race with closeSource
+		}
+		catch (InterruptedException e) {
+		}
+		catch (IOException e) {
+		    stats[gateway].failures.incrementAndGet();
+		}
+		catch (RuntimeException e) {
+		    // Keep trying, a broken gateway mustn't kill its reader
+		    stats[gateway].failures.incrementAndGet();
+		    message(source.getName() + ": reopen failed (" + e + ")");
+		}
+		continue;
+	    }
+
+	    try {
+		byte[] packet = readTimed(source, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+		if (packet != null)
+		    merge(gateway, packet);
+	    }
+	    catch (InterruptedIOException e) {
+		// closeSource, the loop condition takes care of it
+	    }
+	    catch (IOException e) {
+		if (reading(gateway)) {
+		    stats[gateway].failures.incrementAndGet();
+		    message(source.getName() + ": " + e.getMessage());
+		}
+		open = false;
+	    }
+	    catch (RuntimeException e) {
+		// Treated as a failure, the gateway is closed so that it can
+		// be reopened
+		try {
+		    source.close();
+		}
+		catch (IOException ce) { }
+		if (reading(gateway)) {
+		    stats[gateway].failures.incrementAndGet();
+		    message(source.getName() + ": " + e);
+		}
+		open = false;
+	    }
+	}
+    }
+
+    // A hash of the whole packet
+    private static long key(byte[] packet) {
+	return PacketView.hash(packet, 0, packet.length);
+    }
+
+    // Called by the gateway reader threads
+    private void merge(int gateway, byte[] packet) {
+	GatewayStats gs = stats[gateway];
+	long bit = 1L << gateway;
+	long now = System.currentTimeMillis();
+	Long key = Long.valueOf(key(packet));
+
+	gs.received.incrementAndGet();
+	synchronized (seen) {
+	    // Forget packets which are too old, or too many
+	    Iterator<Seen> oldest = seen.values().iterator();
+	    while (oldest.hasNext()) {
+		Seen s = oldest.next();
+		if (now - s.time < window && seen.size() < maxEntries)
+		    break;
+		oldest.remove();
+	    }
+
+	    Seen s = seen.get(key);
+	    if (s != null && (s.gateways & bit) == 0) {
+		s.gateways |= bit;
+		gs.duplicates.incrementAndGet();
+		return;
+	    }
+	    // New, or received again by the same gateway: start over, so
+	    // that the entry is the newest
+	    if (s != null)
+		seen.remove(key);
+	    seen.put(key, new Seen(now, bit));
+
+	    // The queue has one producer at a time, as it requires
+	    gs.first.incrementAndGet();
+	    received.offer(packet);
+	}
+    }
+
+    protected byte[] readSourcePacket() throws IOException {
+	return received.take(0);
+    }
+
+    protected byte[] readSourcePacket(long deadline) throws IOException {
+	return received.take(deadline);
+    }
+
+    protected boolean writeSourcePacket(byte[] packet) throws IOException {
+	// A failed gateway must not close the merge source
+	for (int i = 0; i < gateways.length; i++) {
+	    try {
+		return gateways[i].writePacket(packet);
+	    }
+	    catch (IOException e) {
+	    }
+	}
+	return false;
+    }
+
+    // Check that a framed gateway which is closed under the merge source
+    // is reopened, and that packets get through it again
+    private static void verify() throws IOException {
+	PacketSource mote = BuildSource.makePacketSource("mem@verify0:framed");
+	PacketSource other = BuildSource.makePacketSource("mem@verify1:framed");
+	MergeSource merge = (MergeSource)BuildSource.makePacketSource
+	    ("merge@mem@verify0:framed+mem@verify1:framed");
+	mote.open(null);
+	other.open(null);
+	merge.open(null);
+
+	merge.gateways[0].close();
+	// The mote's frames wait in the link until the gateway is reopened
+	// (the mote gives up waiting for an ACK long before that)
+	byte[] packet = { 0, 1, 2, 3 };
+	mote.writePacket(packet);
+	byte[] merged = merge.readPacket(2 * RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+	GatewayStats gs = merge.getGatewayStats()[0];
+
+	merge.close();
+	mote.close();
+	other.close();
+	if (merged == null || !Arrays.equals(merged, packet) ||
+	    gs.getFailures() == 0) {
+	    System.out.println("gateway not reopened: " + gs);
+	    System.exit(1);
+	}
+	System.out.println("closed gateway reopened: " + gs);
+    }
+
+    public static void main(String[] args) throws IOException {
+	if (args.length == 1 && args[0].equals("-verify")) {
+	    verify();
+	    return;
+	}
+	System.err.println("usage: java net.tinyos.packet.MergeSource -verify");
+	System.exit(2);
+    }
+}
@@ -0,0 +1,298 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A bounded queue of received packets, used by Packetizer between its
+ * reader thread (the only producer) and packet readers (any number of
+ * consumers).
+ *
+ * The queue is a fixed-size ring of packet references (capacity is
+ * rounded up to a power of two). Each slot has a sequence number saying
+ * whether it holds the packet for a given position or is free for it (as
+ * in Vyukov's bounded queue), so a slow consumer never touches a slot
+ * the producer has since reused. Adding and removing packets does not
+ * take locks or allocate; waiting threads park until woken by the other
+ * side. When the queue is full, the overflow policy decides what happens
+ * to a new packet:
+ * - DROP_OLDEST: the oldest queued packet is discarded
+ * - DROP_NEWEST: the new packet is discarded
+ * - BLOCK: the producer waits for space. Note that this stops the
+ *   Packetizer reading from its byte source altogether, so ACKs are not
+ *   seen until the queue is drained.
+ * Discarded packets are counted (see <code>getDropped</code>).
+ */
+public class PacketQueue
+{
+    public final static int DROP_OLDEST = 0;
+    public final static int DROP_NEWEST = 1;
+    public final static int BLOCK = 2;
+
+    private final AtomicReferenceArray<byte[]> slots;
+    // sequence[i] is p when slot i is free for position p, and p + 1
+    // once it holds the packet for position p
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final int policy;
+
+    // head: next packet to remove, tail: next free slot (only modified
+    // by the producer). Both only ever increase.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final ConcurrentLinkedQueue<Thread> waiters =
+	new ConcurrentLinkedQueue<Thread>();
+    private volatile Thread blockedProducer;
+    private volatile boolean closed;
+
+    /**
+     * Make a new packet queue
+     * @param capacity Minimum number of packets the queue can hold
+     * @param policy What to do with packets that arrive when the queue is
+     *   full (DROP_OLDEST, DROP_NEWEST or BLOCK)
+     */
+    public PacketQueue(int capacity, int policy) {
+	if (capacity < 1 || capacity > 1 << 30)
+	    throw new IllegalArgumentException("bad capacity " + capacity);
+	if (policy != DROP_OLDEST && policy != DROP_NEWEST && policy != BLOCK)
+	    throw new IllegalArgumentException("bad overflow policy " + policy);
+
+	int size = 1;
+	while (size < capacity)
+	    size <<= 1;
+	slots = new AtomicReferenceArray<byte[]>(size);
+	sequence = new AtomicLongArray(size);
+	for (int i = 0; i < size; i++)
+	    sequence.set(i, i);
+	mask = size - 1;
+	this.policy = policy;
+    }
+
+    /**
+     * Add a packet. Must only be called from one thread.
+     * @return false if the packet was dropped
+     */
+    boolean offer(byte[] packet) {
+	return offer(packet, null);
+    }
+
+    /**
+     * Add a packet. Must only be called from one thread.
+     * @param open If not null, a BLOCK producer waiting for space gives
+     *   up once open is false (see <code>wakeProducer</code>)
+     * @return false if the packet was dropped
+     */
+    boolean offer(byte[] packet, AtomicBoolean open) {
+	long t = tail.get();
+
+	while (t - head.get() > mask) {
+	    if (closed || policy == DROP_NEWEST) {
+		dropped.incrementAndGet();
+		return false;
+	    }
+	    if (policy == DROP_OLDEST) {
+		if (poll() != null)
+		    dropped.incrementAndGet();
+	    }
+	    else {
+		blockedProducer = Thread.currentThread();
+		if (open != null && !open.get()) {
+		    blockedProducer = null;
+		    dropped.incrementAndGet();
+		    return false;
+		}
+		if (t - head.get() > mask && !closed)
+		    LockSupport.park(this);
+		blockedProducer = null;
+	    }
+	}
+	// A consumer may still be emptying the slot
+	int index = (int)t & mask;
+	while (sequence.get(index) != t)
+	    Thread.yield();
+	slots.set(index, packet);
+	sequence.set(index, t + 1);
+	tail.set(t + 1);
+
+	Thread waiter = waiters.peek();
+	if (waiter != null)
+	    LockSupport.unpark(waiter);
+	return true;
+    }
+
+    /**
+     * Remove the oldest packet, without waiting
+     * @return The packet, or null if the queue is empty
+     */
+    public byte[] poll() {
+	for (;;) {
+	    long h = head.get();
+	    int index = (int)h & mask;
+	    long ready = sequence.get(index) - (h + 1);
+	    if (ready < 0)
+		return null; // not yet filled
+	    if (ready == 0 && head.compareAndSet(h, h + 1)) {
+		// The slot is ours until we hand it back to the producer
+		byte[] packet = slots.get(index);
+		slots.set(index, null);
+		sequence.set(index, h + mask + 1);
+		Thread producer = blockedProducer;
+		if (producer != null)
+		    LockSupport.unpark(producer);
+		return packet;
+	    }
+	    // Another consumer took position h, retry
+	}
+    }
+
+    /**
+     * Remove the oldest packet, waiting for one if necessary
+     * @param deadline Time (System.currentTimeMillis) at which to give up,
+     *   or 0 to wait forever
+     * @return The packet, or null if deadline passed
+     * @exception InterruptedIOException If the thread is interrupted
+     * @exception IOException If the queue is closed
+     */
+    public byte[] take(long deadline) throws IOException {
+	byte[] packet = poll();
+	if (packet != null)
+	    return packet;
+
+	Thread me = Thread.currentThread();
+	waiters.add(me);
+	try {
+	    for (;;) {
+		packet = poll();
+		if (packet != null)
+		    return packet;
+		if (closed)
+		    throw new IOException("closed");
+		if (Thread.interrupted())
+		    throw new InterruptedIOException("interrupted");
+
+		if (deadline == 0)
+		    LockSupport.park(this);
+		else {
+		    long left = deadline - System.currentTimeMillis();
+		    if (left <= 0)
+			return null;
+		    LockSupport.parkNanos(this, left * 1000000);
+		}
+	    }
+	}
+	finally {
+	    waiters.remove(me);
+	    // Pass on any wakeup we may have absorbed
+	    Thread next = waiters.peek();
+	    if (next != null && tail.get() > head.get())
+		LockSupport.unpark(next);
+	}
+    }
+
+    /**
+     * Close the queue: waiting and future takes fail once the queue is
+     * empty, a blocked producer is released and further packets are
+     * dropped.
+     */
+    void close() {
+	closed = true;
+	Thread producer = blockedProducer;
+	if (producer != null)
+	    LockSupport.unpark(producer);
+	Iterator<Thread> i = waiters.iterator();
+	while (i.hasNext())
+	    LockSupport.unpark(i.next());
+    }
+
+    /**
+     * Wake up a producer blocked on a full queue, so that it rechecks its
+     * <code>open</code> flag
+     */
+    void wakeProducer() {
+	Thread producer = blockedProducer;
+	if (producer != null)
+	    LockSupport.unpark(producer);
+    }
+
+    /**
+     * @return true if the queue has been closed
+     */
+    boolean isClosed() {
+	return closed;
+    }
+
+    /**
+     * @return The number of packets currently queued
+     */
+    public int size() {
+	long h = head.get();
+	return (int)Math.max(0, tail.get() - h);
+    }
+
+    /**
+     * @return The number of packets the queue can hold
+     */
+    public int capacity() {
+	return mask + 1;
+    }
+
+    /**
+     * @return The overflow policy (DROP_OLDEST, DROP_NEWEST or BLOCK)
+     */
+    public int getPolicy() {
+	return policy;
+    }
+
+    /**
+     * @return The number of packets dropped because the queue was full
+     */
+    public long getDropped() {
+	return dropped.get();
+    }
+}
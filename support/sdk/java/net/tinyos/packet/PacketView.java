@@ -0,0 +1,158 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+/**
+ * A view of a packet (in PacketSource format) as a range of a byte
+ * array. Pipeline stages (see PacketStage) look at packets through a
+ * view which PipelineSource reuses for every packet, so examining a
+ * packet doesn't copy or allocate anything.
+ *
+ * The AM header accessors assume a serial AM packet (see isAM): byte 0
+ * is the dispatch byte, followed by the destination and source addresses
+ * (2 bytes each, most significant byte first), the payload length, the
+ * group and the AM type, then the payload.
+ */
+public class PacketView
+{
+    static final int DEST_OFFSET = 1;
+    static final int SOURCE_OFFSET = 3;
+    static final int LENGTH_OFFSET = 5;
+    static final int GROUP_OFFSET = 6;
+    static final int TYPE_OFFSET = 7;
+    static final int DATA_OFFSET = 8;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    public PacketView() {
+    }
+
+    public PacketView(byte[] packet) {
+	set(packet, 0, packet.length);
+    }
+
+    /**
+     * Make this view show length bytes of buffer, starting at offset
+     */
+    public void set(byte[] buffer, int offset, int length) {
+	this.buffer = buffer;
+	this.offset = offset;
+	this.length = length;
+    }
+
+    public byte[] getBuffer() {
+	return buffer;
+    }
+
+    public int getOffset() {
+	return offset;
+    }
+
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * @return Byte i of the packet (0 is the dispatch byte)
+     */
+    public int get(int i) {
+	if (i < 0 || i >= length)
+	    throw new ArrayIndexOutOfBoundsException(i);
+	return buffer[offset + i] & 0xff;
+    }
+
+    // A 2 byte, most significant byte first, field
+    private int get16(int i) {
+	return get(i) << 8 | get(i + 1);
+    }
+
+    /**
+     * @return true if this is a serial AM packet with a complete header
+     */
+    public boolean isAM() {
+	return length >= DATA_OFFSET &&
+	    buffer[offset] == Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID;
+    }
+
+    public int getDestination() {
+	return get16(DEST_OFFSET);
+    }
+
+    public int getSource() {
+	return get16(SOURCE_OFFSET);
+    }
+
+    public int getGroup() {
+	return get(GROUP_OFFSET);
+    }
+
+    public int getType() {
+	return get(TYPE_OFFSET);
+    }
+
+    /**
+     * @return A copy of the packet
+     */
+    public byte[] toByteArray() {
+	byte[] copy = new byte[length];
+	System.arraycopy(buffer, offset, copy, 0, length);
+	return copy;
+    }
+
+    /**
+     * @return A 64-bit hash of the packet, used to recognise duplicates
+     */
+    public long hash() {
+	return hash(buffer, offset, length);
+    }
+
+    // 64-bit FNV-1a: no allocation, and good enough to tell packets apart
+    static long hash(byte[] buffer, int offset, int length) {
+	long h = 0xcbf29ce484222325L;
+	for (int i = offset; i < offset + length; i++) {
+	    h ^= buffer[i] & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	return h;
+    }
+}
@@ -45,6 +45,9 @@ import net.tinyos.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.management.*;
+import javax.management.*;
 
 /**
  * The Packetizer class implements the new mote-PC protocol, using a ByteSource
@@ -87,8 +90,11 @@ public class Packetizer extends AbstractSource implements Runnable {
    *   unknown packet type, the receicer must send a P_UNKNOWN packet,
    *   the first byte must be the unknown packet type. 
    *
-   * - Packets that are greater than a (private) MTU are silently
-   *   dropped.
+   * - Packets that are greater than the MTU are silently
+   *   dropped. The MTU is 256 bytes unless a larger one is configured
+   *   for the source (both sides must agree). Writes whose frame would
+   *   exceed the MTU (i.e., packets of more than MTU - 4 bytes) are
+   *   rejected with an IOException rather than sent.
    */
   final static boolean DEBUG = false;
 
@@ -96,9 +102,25 @@ public class Packetizer extends AbstractSource implements Runnable {
 
   final static int ESCAPE_BYTE = Serial.HDLC_CTLESC_BYTE;
 
-  final static int MTU = 256;
+  final static int MTU = 256; // default
 
-  final static int ACK_TIMEOUT = 1000; // in milliseconds
+  final static int MAX_MTU = 65536;
+
+  final static int ACK_TIMEOUT = 1000; // maximum, in milliseconds
+
+  final static int MIN_ACK_TIMEOUT = 20; // in milliseconds
+
+  final static int ACK_RETRIES = 25; // transmissions per acked packet
+
+  final static int MAX_ACK_WINDOW = 64;
+
+  final static int RECEIVE_QUEUE_SIZE = 1024; // default, in packets
+
+  final static int ACK_QUEUE_SIZE = 16;
+
+  final static int IN_BUFFER_SIZE = 1024;
+
+  final static int THREAD_STOP_TIMEOUT = 2000; // in milliseconds
 
   final static int P_ACK = Serial.SERIAL_PROTO_ACK;
 
@@ -112,223 +134,711 @@ public class Packetizer extends AbstractSource implements Runnable {
 
   private boolean inSync;
 
-  private byte[] receiveBuffer = new byte[MTU];
+  // Largest frame accepted (packet type, data and crc)
+  private int mtu;
+
+  private byte[] receiveBuffer;
+
+  // Raw bytes from io, waiting to be deframed (inBuffer[inPos..inCount-1])
+  private byte[] inBuffer;
+
+  private int inPos, inCount;
+
+  // Deframing state: bytes in receiveBuffer, escape pending, hunting for
+  // a sync byte (and already reported it)
+  private int count;
+
+  private boolean escaped, resyncing;
 
   private int seqNo;
 
+  // Frames are written by a separate thread, from two queues (guarded by
+  // txLock). Control frames (P_ACK and P_UNKNOWN, queued by the reader
+  // thread) go ahead of data frames, and the reader never waits for them
+  // to be written. The encoder is only used by the transmitter thread.
+  private volatile Transmitter transmitter;
+
+  private final Object txLock = new Object();
+
+  private LinkedList<Frame> txControl = new LinkedList<Frame>();
+
+  private LinkedList<Frame> txData = new LinkedList<Frame>();
+
+  private boolean txClosed;
+
+  private Escaper encoder;
+
   // Packets are received by a separate thread and placed in a
   // per-packet-type queue. If received[x] is null, then x is an
   // unknown protocol (but P_UNKNOWN and P_PACKET_ACK are handled
-  // specially)
-  private Thread reader;
+  // specially). Each open starts new reader and transmitter threads.
+  private volatile Thread reader;
+
+  private PacketQueue[] received;
+
+  // Windowed acknowledgement state (guarded by pending): up to ackWindow
+  // acked packets may be outstanding, pending[s] is the outstanding packet
+  // with sequence number s (or null)
+  private int ackWindow = 1;
+
+  private int inFlight;
+
+  private PendingPacket[] pending = new PendingPacket[256];
+
+  // ACK timeouts adapt to the measured round-trip time
+  private RttEstimator rtt = new RttEstimator(MIN_ACK_TIMEOUT, ACK_TIMEOUT);
+
+  private PacketizerStats stats = new PacketizerStats(this);
+
+  // Statistics are only exported through JMX when this system property
+  // is true: starting the platform MBean server takes a noticeable time
+  final static String JMX_PROPERTY = "net.tinyos.packet.jmx";
+
+  // Makes MBean names unique, as several sources may have the same name
+  private static final AtomicInteger instances = new AtomicInteger();
+
+  private final int instance = instances.incrementAndGet();
+
+  private ObjectName mbeanName;
+
+  static class PendingPacket {
+    byte[] packet;
+
+    int seqNo;
 
-  private LinkedList[] received;
+    int transmissions;
+
+    long sentAt; // System.nanoTime() of last transmission
+
+    long deadline;
+
+    boolean acked;
+
+    PendingPacket(byte[] packet, int seqNo) {
+      this.packet = packet;
+      this.seqNo = seqNo;
+    }
+  }
 
   /**
    * Packetizers are built using the makeXXX methods in BuildSource
    */
   Packetizer(String name, ByteSource io) {
+    this(name, io, MTU);
+  }
+
+  Packetizer(String name, ByteSource io, int mtu) {
     super(name);
+    if (mtu < MTU || mtu > MAX_MTU) {
+      throw new IllegalArgumentException("bad MTU " + mtu);
+    }
     this.io = io;
+    this.mtu = mtu;
+    receiveBuffer = new byte[mtu];
+    inBuffer = new byte[Math.max(IN_BUFFER_SIZE, mtu)];
+    encoder = new Escaper(mtu + 6);
     inSync = false;
     seqNo = 13;
-    reader = new Thread(this);
-    received = new LinkedList[256];
-    received[P_ACK] = new LinkedList();
-    received[P_PACKET_NO_ACK] = new LinkedList();
+    received = new PacketQueue[256];
+    // Only the latest ACKs matter
+    received[P_ACK] = new PacketQueue(ACK_QUEUE_SIZE, PacketQueue.DROP_OLDEST);
+    received[P_PACKET_NO_ACK] = new PacketQueue(RECEIVE_QUEUE_SIZE,
+        PacketQueue.DROP_OLDEST);
   }
 
   synchronized public void open(Messenger messages) throws IOException {
     super.open(messages);
-    if (!reader.isAlive()) {
-      reader.start();
-    }
+    registerMBean();
   }
 
   protected void openSource() throws IOException {
     io.open();
+
+    // A Packetizer can be reopened after it is closed (e.g., by an I/O
+    // error): start again with no partial frame, open queues and new
+    // threads. closeSource waited for the previous threads to stop.
+    inSync = false;
+    resyncing = false;
+    escaped = false;
+    count = 0;
+    inPos = inCount = 0;
+    if (received[P_ACK].isClosed()) {
+      received[P_ACK] = new PacketQueue(ACK_QUEUE_SIZE, PacketQueue.DROP_OLDEST);
+    }
+    PacketQueue packets = received[P_PACKET_NO_ACK];
+    if (packets.isClosed()) {
+      received[P_PACKET_NO_ACK] = new PacketQueue(packets.capacity(),
+          packets.getPolicy());
+    }
+    synchronized (txLock) {
+      txClosed = false;
+      txControl.clear();
+      txData.clear();
+    }
+    reader = new Thread(this, name + " reader");
+    transmitter = new Transmitter();
+    reader.start();
+    transmitter.start();
   }
 
   protected void closeSource() {
     io.close();
+    synchronized (pending) {
+      pending.notifyAll();
+    }
+    synchronized (txLock) {
+      txClosed = true;
+      txLock.notifyAll();
+    }
+    received[P_ACK].close();
+    received[P_PACKET_NO_ACK].close();
+    unregisterMBean();
+
+    // Closing io stops the threads, wait for them so that a reopen
+    // doesn't share the byte source with them
+    awaitStop(reader);
+    awaitStop(transmitter);
   }
 
-  protected byte[] readProtocolPacket(int packetType, long deadline)
-      throws IOException {
-    LinkedList inPackets = received[packetType];
-
-    // Wait for a packet on inPackets
-    synchronized (inPackets) {
-      while (inPackets.isEmpty()) {
-        long now = System.currentTimeMillis();
-        if (deadline != 0 && now >= deadline) {
-          return null;
-        }
-        try {
-          inPackets.wait(deadline != 0 ? deadline - now : 0);
-        } catch (InterruptedException e) {
-          throw new IOException("interrupted");
-        }
+  private static void awaitStop(Thread thread) {
+    if (thread == null || thread == Thread.currentThread()) {
+      return;
+    }
+    try {
+      thread.join(THREAD_STOP_TIMEOUT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Statistics are published through JMX while the Packetizer is open,
+  // if enabled. JMX problems are not fatal.
+  private void registerMBean() {
+    if (!Boolean.getBoolean(JMX_PROPERTY)) {
+      return;
+    }
+    try {
+      ObjectName objectName = new ObjectName("net.tinyos.packet:type=Packetizer,name="
+          + ObjectName.quote(name) + ",id=" + instance);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+      mbeanName = objectName;
+    } catch (Exception e) {
+      message(name + ": statistics not available through JMX (" + e + ")");
+    }
+  }
+
+  private void unregisterMBean() {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (Exception e) {
       }
-      return (byte[]) inPackets.removeFirst();
+      mbeanName = null;
+    }
+  }
+
+  /**
+   * Set the number of acknowledged packets that may be outstanding at
+   * once. The default, 1, is the original stop-and-wait protocol. With a
+   * larger window, concurrent writePacket calls and writePackets pipeline
+   * their packets, ACKs are matched to packets by sequence number, and
+   * only the packets whose ACK timed out are retransmitted. The mote must
+   * acknowledge every P_PACKET_ACK frame it receives (not just the most
+   * recent one) for this to be useful.
+   * @param window Maximum number of outstanding packets (1 to 64)
+   */
+  public void setAckWindow(int window) {
+    if (window < 1 || window > MAX_ACK_WINDOW) {
+      throw new IllegalArgumentException("bad ack window " + window);
+    }
+    synchronized (pending) {
+      ackWindow = window;
+      pending.notifyAll();
+    }
+  }
+
+  public int getAckWindow() {
+    synchronized (pending) {
+      return ackWindow;
+    }
+  }
+
+  /**
+   * @return This Packetizer's frame statistics
+   */
+  public PacketizerStats getStats() {
+    return stats;
+  }
+
+  /**
+   * @return The largest frame this Packetizer accepts, in bytes
+   */
+  public int getMtu() {
+    return mtu;
+  }
+
+  /**
+   * @return The round-trip time estimates used to compute this
+   *   Packetizer's ACK timeout
+   */
+  public RttEstimator getRttEstimator() {
+    return rtt;
+  }
+
+  /**
+   * Replace the queue of received user packets, e.g., to change its
+   * capacity or overflow policy. The default queue holds 1024 packets
+   * and drops the oldest packet when full.
+   * @param capacity Queue capacity (rounded up to a power of 2)
+   * @param policy Overflow policy (see PacketQueue)
+   * @exception IllegalStateException If the Packetizer is already open
+   */
+  synchronized public void setReceiveQueue(int capacity, int policy) {
+    if (opened) {
+      throw new IllegalStateException("already open");
     }
+    received[P_PACKET_NO_ACK] = new PacketQueue(capacity, policy);
+  }
+
+  /**
+   * @return The queue of received user packets, for statistics
+   */
+  public PacketQueue getReceiveQueue() {
+    return received[P_PACKET_NO_ACK];
+  }
+
+  protected byte[] readProtocolPacket(int packetType, long deadline)
+      throws IOException {
+    return received[packetType].take(deadline);
   }
 
   // Place a packet in its packet queue, or reject unknown packet
   // types (which don't have a queue)
   protected void pushProtocolPacket(int packetType, byte[] packet) {
-    LinkedList inPackets = received[packetType];
+    PacketQueue inPackets = received[packetType];
 
     if (inPackets != null) {
-      synchronized (inPackets) {
-        inPackets.add(packet);
-        inPackets.notify();
-      }
+      inPackets.offer(packet);
     } else if (packetType != P_UNKNOWN) {
-      try {
-        writeFramedPacket(P_UNKNOWN, packetType, ackPacket, 0);
-      } catch (IOException e) {
-      }
+      stats.unknownPacketTypes.incrementAndGet();
+      queueControlFrame(P_UNKNOWN, packetType);
       message(name + ": ignoring unknown packet type 0x"
           + Integer.toHexString(packetType));
     }
   }
 
   protected byte[] readSourcePacket() throws IOException {
+    return readSourcePacket(0);
+  }
+
+  protected byte[] readSourcePacket(long deadline) throws IOException {
     // Packetizer packet format is identical to PacketSource's
     for (;;) {
-      byte[] packet = readProtocolPacket(P_PACKET_NO_ACK, 0);
-      if (packet.length >= 1) {
+      byte[] packet = readProtocolPacket(P_PACKET_NO_ACK, deadline);
+      if (packet == null || packet.length >= 1) {
         return packet;
       }
     }
   }
 
-  // Write an ack-ed packet
+  // Reject packets whose frame (packet type, sequence number, packet and
+  // crc) exceeds the MTU, as the other side would drop them
+  private void checkLength(byte[] packet) throws IOException {
+    if (packet.length + 4 > mtu) {
+      throw new IOException(name + ": packet too long (" + packet.length
+          + " bytes, the MTU allows " + (mtu - 4) + ")");
+    }
+  }
+
+  public boolean writePacket(byte[] packet) throws IOException {
+    // Checked here so that a rejected packet doesn't close the source
+    checkLength(packet);
+    if (getAckWindow() == 1) {
+      return super.writePacket(packet);
+    }
+
+    // Windowed writes don't hold the source lock, so that concurrent
+    // writers can have their packets in flight together
+    boolean[] acked = new boolean[1];
+    writePackets(new byte[][] { packet }, acked);
+    return acked[0];
+  }
+
+  /**
+   * Write a sequence of packets, keeping up to the ack window (see
+   * <code>setAckWindow</code>) of them outstanding at a time.
+   * @param packets The packets to write
+   * @param acked Set to true for each packet that was acknowledged
+   * @return true if all packets were acknowledged
+   * @exception IOException If a packet is too long for the MTU (nothing
+   *   is written), or if the source failed (the source is closed).
+   */
+  public boolean writePackets(byte[][] packets, boolean[] acked)
+      throws IOException {
+    failIfClosed();
+    for (int i = 0; i < packets.length; i++) {
+      checkLength(packets[i]);
+    }
+
+    try {
+      if (getAckWindow() == 1) {
+        synchronized (this) {
+          for (int i = 0; i < packets.length; i++) {
+            acked[i] = writeSourcePacket(packets[i]);
+          }
+        }
+      } else {
+        writeWindowed(packets, acked);
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+
+    for (int i = 0; i < packets.length; i++) {
+      if (!acked[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Allocate a sequence number not used by an outstanding packet.
+  // Called with pending locked.
+  private int nextSeqNo() {
+    do {
+      seqNo = (seqNo + 1) & 0xff;
+    } while (pending[seqNo] != null);
+    return seqNo;
+  }
+
+  // Record a (re)transmission of an outstanding packet, which the caller
+  // then writes without holding pending (so that the reader thread can
+  // match ACKs meanwhile). The RTT is measured from here, so includes the
+  // time to write the frame. Called with pending locked.
+  private void markSent(PendingPacket p) {
+    if (DEBUG && p.transmissions > 0) {
+      message(name + ": ACK timed out, resending " + p.seqNo);
+    }
+    p.transmissions++;
+    p.sentAt = System.nanoTime();
+    p.deadline = System.currentTimeMillis() + rtt.getTimeout();
+  }
+
+  // Remove a packet from the window. Called with pending locked.
+  private void release(PendingPacket p) {
+    pending[p.seqNo] = null;
+    inFlight--;
+    pending.notifyAll();
+  }
+
+  private void writeWindowed(byte[][] packets, boolean[] acked)
+      throws IOException {
+    PendingPacket[] mine = new PendingPacket[packets.length];
+    PendingPacket[] send = new PendingPacket[packets.length];
+    int next = 0, remaining = packets.length;
+
+    try {
+      while (remaining > 0) {
+        int nsend = 0;
+
+        synchronized (pending) {
+          failIfClosed();
+
+          // Fill our share of the window
+          while (next < packets.length && inFlight < ackWindow) {
+            PendingPacket p = new PendingPacket(packets[next], nextSeqNo());
+            pending[p.seqNo] = p;
+            inFlight++;
+            mine[next++] = p;
+            markSent(p);
+            send[nsend++] = p;
+          }
+
+          // Collect acks and failures, retransmit timed out packets
+          boolean progress = false;
+          long now = System.currentTimeMillis();
+          long wakeup = 0;
+          for (int i = 0; i < next; i++) {
+            PendingPacket p = mine[i];
+            if (p == null) {
+              continue;
+            }
+            if (p.acked || now >= p.deadline && p.transmissions >= ACK_RETRIES) {
+              if (!p.acked) {
+                stats.ackTimeouts.incrementAndGet();
+                stats.ackFailures.incrementAndGet();
+              }
+              acked[i] = p.acked;
+              release(p);
+              mine[i] = null;
+              remaining--;
+              progress = true;
+              continue;
+            }
+            if (now >= p.deadline) {
+              stats.ackTimeouts.incrementAndGet();
+              stats.ackRetries.incrementAndGet();
+              rtt.backoff();
+              markSent(p);
+              send[nsend++] = p;
+            }
+            if (wakeup == 0 || p.deadline < wakeup) {
+              wakeup = p.deadline;
+            }
+          }
+
+          if (remaining > 0 && !progress && nsend == 0) {
+            try {
+              // wakeup == 0 if the window is full with other writers'
+              // packets: wait for a release
+              pending.wait(wakeup == 0 ? 0 : Math.max(1, wakeup - now));
+            } catch (InterruptedException e) {
+              throw new IOException("interrupted");
+            }
+          }
+        }
+
+        for (int i = 0; i < nsend; i++) {
+          PendingPacket p = send[i];
+          writeFramedPacket(P_PACKET_ACK, p.seqNo, p.packet, p.packet.length);
+        }
+      }
+    } finally {
+      synchronized (pending) {
+        for (int i = 0; i < next; i++) {
+          if (mine[i] != null) {
+            release(mine[i]);
+          }
+        }
+      }
+    }
+  }
+
+  // Match an incoming ACK against the outstanding windowed packets.
+  // Returns false if no windowed packet is waiting for this ACK.
+  private boolean ackReceived(int ackSeqNo) {
+    synchronized (pending) {
+      PendingPacket p = pending[ackSeqNo & 0xff];
+      if (p == null) {
+        return false;
+      }
+      if (DEBUG) {
+        message(name + ": Rcvd ACK " + p.seqNo);
+      }
+      // Karn's rule: the ACK of a retransmitted frame is ambiguous
+      if (!p.acked && p.transmissions == 1) {
+        rtt.sample(System.nanoTime() - p.sentAt);
+      }
+      p.acked = true;
+      pending.notifyAll();
+      return true;
+    }
+  }
+
+  // Write an ack-ed packet. Each attempt uses a new sequence number, and
+  // the ACK of any attempt means the packet arrived. Other ACKs (for
+  // earlier packets) are ignored.
   protected boolean writeSourcePacket(byte[] packet) throws IOException {
-    for (int retries = 0; retries < 25; retries++) {
+    int firstSeqNo = seqNo + 1;
+
+    for (int retries = 0; retries < ACK_RETRIES; retries++) {
+      if (retries > 0) {
+        stats.ackRetries.incrementAndGet();
+      }
       writeFramedPacket(P_PACKET_ACK, ++seqNo, packet, packet.length);
 
-      long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+      long sentAt = System.nanoTime();
+      long deadline = System.currentTimeMillis() + rtt.getTimeout();
 
-      byte[] ack = readProtocolPacket(P_ACK, deadline);
-      if (ack == null) {
-        if (DEBUG) {
-          message(name + ": ACK timed out");
+      byte[] ack;
+      while ((ack = readProtocolPacket(P_ACK, deadline)) != null) {
+        if (ack.length == 0) {
+          continue;
         }
-        continue;
-      }
-      if (ack[0] == (byte) seqNo) {
-        if (DEBUG) {
-          message(name + ": Rcvd ACK");
+        int attempt = (ack[0] - firstSeqNo) & 0xff;
+        if (attempt <= retries) {
+          if (DEBUG) {
+            message(name + ": Rcvd ACK");
+          }
+          // Sequence numbers are not reused, so the ACK of the latest
+          // attempt is not ambiguous (Karn's rule does not apply)
+          if (attempt == retries) {
+            rtt.sample(System.nanoTime() - sentAt);
+          }
+          return true;
         }
-        return true;
       }
+      if (DEBUG) {
+        message(name + ": ACK timed out");
+      }
+      stats.ackTimeouts.incrementAndGet();
+      rtt.backoff();
     }
 
+    stats.ackFailures.incrementAndGet();
     return false;
   }
 
   static private byte ackPacket[] = new byte[0];
 
   public void run() {
+    Thread me = Thread.currentThread();
     try {
-      for (;;) {
+      while (reader == me) {
         byte[] packet = readFramedPacket();
         int packetType = packet[0] & 0xff;
         int pdataOffset = 1;
 
         if (packetType == P_PACKET_ACK) {
           // send ack
-          writeFramedPacket(P_ACK, packet[1], ackPacket, 0);
+          queueControlFrame(P_ACK, packet[1]);
           // And merge with un-acked packets
           packetType = P_PACKET_NO_ACK;
           pdataOffset = 2;
         }
+        if (packetType == P_ACK && packet.length >= 2 && ackReceived(packet[1])) {
+          continue;
+        }
         int dataLength = packet.length - pdataOffset;
         byte[] dataPacket = new byte[dataLength];
         System.arraycopy(packet, pdataOffset, dataPacket, 0, dataLength);
         pushProtocolPacket(packetType, dataPacket);
       }
     } catch (IOException e) {
+      // The byte source failed (or was closed). Readers get any packets
+      // still queued, then an error, rather than waiting forever. A
+      // reader that didn't stop in time for a reopen leaves the new
+      // queues alone.
+      if (reader == me) {
+        received[P_ACK].close();
+        received[P_PACKET_NO_ACK].close();
+      }
     }
   }
 
-  // Read system-level packet. If inSync is false, we currently don't
-  // have sync
+  // Read system-level packet. Bytes are read from io in chunks into
+  // inBuffer, and deframed by deframe()
   private byte[] readFramedPacket() throws IOException {
-    int count = 0;
-    boolean escaped = false;
-
     for (;;) {
-      if (!inSync) {
-        message(name + ": resynchronising");
-        // re-synchronise
-        while (io.readByte() != SYNC_BYTE)
-          ;
-        inSync = true;
-        count = 0;
-        escaped = false;
+      if (inPos == inCount) {
+        inCount = io.readBytes(inBuffer, 0, inBuffer.length);
+        inPos = 0;
+        stats.bytesReceived.addAndGet(inCount);
       }
-
-      if (count >= MTU) {
-        // Packet too long, give up and try to resync
-        message(name + ": packet too long");
-        inSync = false;
-        continue;
+      byte[] packet = deframe();
+      if (packet != null) {
+        return packet;
       }
+    }
+  }
 
-      byte b = io.readByte();
-      if (escaped) {
-        if (b == SYNC_BYTE) {
-          // sync byte following escape is an error, resync
-          message(name + ": unexpected sync byte");
-          inSync = false;
-          continue;
-        }
-        b ^= 0x20;
-        escaped = false;
-      } else if (b == ESCAPE_BYTE) {
-        escaped = true;
-        continue;
-      } else if (b == SYNC_BYTE) {
-        if (count < 4) {
-          // too-small frames are ignored
+  // Run the deframing state machine over the buffered input bytes.
+  // Returns the first complete packet found, or null if all buffered bytes
+  // have been consumed without completing a packet. If inSync is false,
+  // we currently don't have sync.
+  private byte[] deframe() {
+    byte[] buf = inBuffer;
+    int pos = inPos, end = inCount;
+
+    try {
+      while (pos < end) {
+        if (!inSync) {
+          if (!resyncing) {
+            stats.resyncs.incrementAndGet();
+            if (messages != null) {
+              message(name + ": resynchronising");
+            }
+            resyncing = true;
+          }
+          // re-synchronise
+          while (pos < end && buf[pos] != SYNC_BYTE)
+            pos++;
+          if (pos == end) {
+            return null;
+          }
+          pos++;
+          inSync = true;
+          resyncing = false;
           count = 0;
+          escaped = false;
           continue;
         }
-        byte[] packet = new byte[count - 2];
-        System.arraycopy(receiveBuffer, 0, packet, 0, count - 2);
-
-        int readCrc = (receiveBuffer[count - 2] & 0xff)
-            | (receiveBuffer[count - 1] & 0xff) << 8;
-        int computedCrc = Crc.calc(packet, packet.length);
-
-        if (DEBUG) {
-          System.err.println("received: ");
-          Dump.printPacket(System.err, packet);
-          System.err.println(" rcrc: " + Integer.toHexString(readCrc)
-              + " ccrc: " + Integer.toHexString(computedCrc));
-        }
 
-        if (readCrc == computedCrc) {
-          return packet;
-        } else {
-          message(name + ": bad packet");
-          /*
-           * We don't lose sync here. If we did, garbage on the line at startup
-           * will cause loss of the first packet.
-           */
+        byte b = buf[pos++];
+        if (escaped) {
+          if (b == SYNC_BYTE) {
+            // sync byte following escape is an error, resync
+            if (messages != null) {
+              message(name + ": unexpected sync byte");
+            }
+            inSync = false;
+            continue;
+          }
+          b ^= 0x20;
+          escaped = false;
+        } else if (b == ESCAPE_BYTE) {
+          stats.escapedBytesReceived.incrementAndGet();
+          escaped = true;
+          continue;
+        } else if (b == SYNC_BYTE) {
+          if (count < 4) {
+            // too-small frames are ignored
+            count = 0;
+            continue;
+          }
+          int length = count - 2;
           count = 0;
+
+          int readCrc = (receiveBuffer[length] & 0xff)
+              | (receiveBuffer[length + 1] & 0xff) << 8;
+          int computedCrc = Crc.calc(receiveBuffer, length);
+
+          if (DEBUG) {
+            System.err.println("received: ");
+            Dump.printPacket(System.err, receiveBuffer, 0, length);
+            System.err.println(" rcrc: " + Integer.toHexString(readCrc)
+                + " ccrc: " + Integer.toHexString(computedCrc));
+          }
+
+          if (readCrc == computedCrc) {
+            stats.framesReceived.incrementAndGet();
+            byte[] packet = new byte[length];
+            System.arraycopy(receiveBuffer, 0, packet, 0, length);
+            return packet;
+          } else {
+            stats.crcErrors.incrementAndGet();
+            if (messages != null) {
+              message(name + ": bad packet");
+            }
+            /*
+             * We don't lose sync here. If we did, garbage on the line at
+             * startup will cause loss of the first packet.
+             */
+            continue;
+          }
+        }
+
+        if (count == mtu) {
+          // Packet too long, give up and try to resync
+          stats.oversizeFrames.incrementAndGet();
+          if (messages != null) {
+            message(name + ": packet too long");
+          }
+          inSync = false;
           continue;
         }
+        receiveBuffer[count++] = b;
       }
-
-      receiveBuffer[count++] = b;
+      return null;
+    } finally {
+      inPos = pos;
     }
   }
 
-  // Class to build a framed, escaped and crced packet byte stream
+  // Class to build a framed, escaped and crced packet byte stream. The
+  // buffer is reused from packet to packet, and only grows when a packet
+  // larger than any previous one is written
   static class Escaper {
     byte[] escaped;
 
@@ -336,9 +846,16 @@ public class Packetizer extends AbstractSource implements Runnable {
 
     int crc;
 
-    // We're building a length-byte packet
+    // Initial buffer is big enough for a length-byte packet
     Escaper(int length) {
       escaped = new byte[2 * length];
+    }
+
+    // Start a new packet of at most length bytes
+    void start(int length) {
+      if (escaped.length < 2 * length) {
+        escaped = new byte[2 * length];
+      }
       escapePtr = 0;
       crc = 0;
       escaped[escapePtr++] = SYNC_BYTE;
@@ -351,6 +868,17 @@ public class Packetizer extends AbstractSource implements Runnable {
     void nextByte(int b) {
       b = b & 0xff;
       crc = Crc.calcByte(crc, b);
+      escapeByte(b);
+    }
+
+    void nextBytes(byte[] packet, int count) {
+      crc = Crc.calc(crc, packet, 0, count);
+      for (int i = 0; i < count; i++) {
+        escapeByte(packet[i] & 0xff);
+      }
+    }
+
+    private void escapeByte(int b) {
       if (needsEscape(b)) {
         escaped[escapePtr++] = ESCAPE_BYTE;
         escaped[escapePtr++] = (byte) (b ^ 0x20);
@@ -364,10 +892,133 @@ public class Packetizer extends AbstractSource implements Runnable {
     }
   }
 
+  // A frame waiting to be written by the transmitter thread
+  static class Frame {
+    int packetType;
+
+    int firstByte;
+
+    byte[] packet;
+
+    int count;
+
+    boolean sent;
+
+    IOException error;
+
+    Frame(int packetType, int firstByte, byte[] packet, int count) {
+      this.packetType = packetType;
+      this.firstByte = firstByte;
+      this.packet = packet;
+      this.count = count;
+    }
+  }
+
+  // Queue a (data-less) control frame, without waiting for it to be sent
+  private void queueControlFrame(int packetType, int firstByte) {
+    synchronized (txLock) {
+      if (!txClosed) {
+        txControl.add(new Frame(packetType, firstByte, ackPacket, 0));
+        txLock.notifyAll();
+      }
+    }
+  }
+
   // Write a packet of type 'packetType', first byte 'firstByte'
-  // and bytes 2..'count'+1 in 'packet'
-  private synchronized void writeFramedPacket(int packetType, int firstByte,
+  // and bytes 2..'count'+1 in 'packet'. Returns once the transmitter
+  // thread has written the packet.
+  private void writeFramedPacket(int packetType, int firstByte,
       byte[] packet, int count) throws IOException {
+    Frame frame = new Frame(packetType, firstByte, packet, count);
+
+    synchronized (txLock) {
+      if (txClosed) {
+        throw new IOException("closed");
+      }
+      txData.add(frame);
+      txLock.notifyAll();
+      while (!frame.sent) {
+        try {
+          txLock.wait();
+        } catch (InterruptedException e) {
+          // The frame may still be sent, but we don't wait for it
+          throw new IOException("interrupted");
+        }
+      }
+    }
+    if (frame.error != null) {
+      throw frame.error;
+    }
+  }
+
+  class Transmitter extends Thread {
+    Transmitter() {
+      super(name + " transmitter");
+      setDaemon(true);
+    }
+
+    public void run() {
+      for (;;) {
+        Frame frame;
+        boolean control;
+
+        synchronized (txLock) {
+          while (!txClosed && transmitter == this && txControl.isEmpty()
+              && txData.isEmpty()) {
+            try {
+              txLock.wait();
+            } catch (InterruptedException e) {
+            }
+          }
+          if (txClosed) {
+            failQueued(txData);
+            return;
+          }
+          if (transmitter != this) {
+            return; // replaced by a reopen
+          }
+          control = !txControl.isEmpty();
+          if (control) {
+            frame = txControl.removeFirst();
+          } else {
+            frame = txData.removeFirst();
+          }
+        }
+
+        IOException error = null;
+        try {
+          sendFrame(frame, control);
+        } catch (IOException e) {
+          error = e;
+        }
+
+        synchronized (txLock) {
+          frame.error = error;
+          frame.sent = true;
+          txLock.notifyAll();
+        }
+      }
+    }
+
+    // Called with txLock held
+    private void failQueued(LinkedList<Frame> queue) {
+      while (!queue.isEmpty()) {
+        Frame frame = queue.removeFirst();
+        frame.error = new IOException("closed");
+        frame.sent = true;
+      }
+      txLock.notifyAll();
+    }
+  }
+
+  // Encode and write a frame. Only called by the transmitter thread.
+  // Control frames (e.g., ACKs) skip any write coalescing, as the other
+  // side is waiting for them.
+  private void sendFrame(Frame frame, boolean control) throws IOException {
+    int packetType = frame.packetType, firstByte = frame.firstByte;
+    byte[] packet = frame.packet;
+    int count = frame.count;
+
     if (DEBUG) {
       System.err.println("sending: ");
       Dump.printByte(System.err, packetType);
@@ -376,13 +1027,12 @@ public class Packetizer extends AbstractSource implements Runnable {
       System.err.println();
     }
 
-    Escaper buffer = new Escaper(count + 6);
+    Escaper buffer = encoder;
 
+    buffer.start(count + 6);
     buffer.nextByte(packetType);
     buffer.nextByte(firstByte);
-    for (int i = 0; i < count; i++) {
-      buffer.nextByte(packet[i]);
-    }
+    buffer.nextBytes(packet, count);
 
     int crc = buffer.crc;
     buffer.nextByte(crc & 0xff);
@@ -390,12 +1040,24 @@ public class Packetizer extends AbstractSource implements Runnable {
 
     buffer.terminate();
 
-    byte[] realPacket = new byte[buffer.escapePtr];
-    System.arraycopy(buffer.escaped, 0, realPacket, 0, buffer.escapePtr);
-
     if (DEBUG) {
-      Dump.dump("encoded", realPacket);
+      System.err.print("encoded:");
+      Dump.printPacket(System.err, buffer.escaped, 0, buffer.escapePtr);
+      System.err.println();
+    }
+    if (control && io instanceof CoalescingByteSource) {
+      ((CoalescingByteSource) io).writeBytesNow(buffer.escaped, 0,
+          buffer.escapePtr);
+    } else {
+      io.writeBytes(buffer.escaped, 0, buffer.escapePtr);
+    }
+
+    stats.framesSent.incrementAndGet();
+    stats.bytesSent.addAndGet(buffer.escapePtr);
+    // All but the sync bytes and escaped bytes are the frame's content
+    int escapes = buffer.escapePtr - 2 - (count + 4);
+    if (escapes > 0) {
+      stats.escapedBytesSent.addAndGet(escapes);
     }
-    io.writeBytes(realPacket);
   }
 }
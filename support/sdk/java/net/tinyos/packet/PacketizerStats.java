@@ -0,0 +1,205 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+
+package net.tinyos.packet;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Frame-level statistics for a Packetizer, for monitoring link health.
+ * Counters are updated without locking by the Packetizer's threads, and
+ * can be read at any time (through <code>Packetizer.getStats</code>, or
+ * JMX, where each open Packetizer is registered as
+ * net.tinyos.packet:type=Packetizer,name="source name",id=N). JMX export
+ * is off unless the net.tinyos.packet.jmx system property is true
+ * (e.g., java -Dnet.tinyos.packet.jmx=true ...).
+ */
+public class PacketizerStats implements PacketizerStatsMBean
+{
+    private Packetizer packetizer;
+
+    final AtomicLong framesReceived = new AtomicLong();
+    final AtomicLong framesSent = new AtomicLong();
+    final AtomicLong crcErrors = new AtomicLong();
+    final AtomicLong resyncs = new AtomicLong();
+    final AtomicLong oversizeFrames = new AtomicLong();
+    final AtomicLong escapedBytesReceived = new AtomicLong();
+    final AtomicLong escapedBytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong unknownPacketTypes = new AtomicLong();
+    final AtomicLong ackTimeouts = new AtomicLong();
+    final AtomicLong ackRetries = new AtomicLong();
+    final AtomicLong ackFailures = new AtomicLong();
+
+    PacketizerStats(Packetizer packetizer) {
+	this.packetizer = packetizer;
+    }
+
+    public String getSourceName() {
+	return packetizer.getName();
+    }
+
+    /**
+     * @return The number of frames received with a correct CRC
+     */
+    public long getFramesReceived() {
+	return framesReceived.get();
+    }
+
+    /**
+     * @return The number of frames written (including ACKs)
+     */
+    public long getFramesSent() {
+	return framesSent.get();
+    }
+
+    /**
+     * @return The number of frames received with a bad CRC
+     */
+    public long getCrcErrors() {
+	return crcErrors.get();
+    }
+
+    /**
+     * @return The number of times the receiver lost frame synchronisation
+     */
+    public long getResyncs() {
+	return resyncs.get();
+    }
+
+    /**
+     * @return The number of received frames larger than the MTU
+     */
+    public long getOversizeFrames() {
+	return oversizeFrames.get();
+    }
+
+    /**
+     * @return The number of escaped bytes in received frames
+     */
+    public long getEscapedBytesReceived() {
+	return escapedBytesReceived.get();
+    }
+
+    /**
+     * @return The number of escaped bytes in written frames
+     */
+    public long getEscapedBytesSent() {
+	return escapedBytesSent.get();
+    }
+
+    /**
+     * @return The number of raw bytes read from the byte source
+     */
+    public long getBytesReceived() {
+	return bytesReceived.get();
+    }
+
+    /**
+     * @return The number of raw bytes written to the byte source
+     */
+    public long getBytesSent() {
+	return bytesSent.get();
+    }
+
+    /**
+     * @return The number of frames received with an unknown packet type
+     */
+    public long getUnknownPacketTypes() {
+	return unknownPacketTypes.get();
+    }
+
+    /**
+     * @return The number of times an ACK was not received in time
+     */
+    public long getAckTimeouts() {
+	return ackTimeouts.get();
+    }
+
+    /**
+     * @return The number of retransmitted acknowledged packets
+     */
+    public long getAckRetries() {
+	return ackRetries.get();
+    }
+
+    /**
+     * @return The number of acknowledged packets that were never
+     *   acknowledged (writePacket returned false)
+     */
+    public long getAckFailures() {
+	return ackFailures.get();
+    }
+
+    /**
+     * @return The number of received packets dropped because the receive
+     *   queue was full
+     */
+    public long getReceiveQueueDropped() {
+	return packetizer.getReceiveQueue().getDropped();
+    }
+
+    /**
+     * @return The smoothed ACK round-trip time in microseconds, or -1 if
+     *   unknown
+     */
+    public long getSmoothedRtt() {
+	return packetizer.getRttEstimator().getSmoothedRtt();
+    }
+
+    /**
+     * @return The current ACK timeout, in milliseconds
+     */
+    public int getAckTimeout() {
+	return packetizer.getRttEstimator().getTimeout();
+    }
+
+    public String toString() {
+	return packetizer.getName() + ": " +
+	    framesReceived + " frames (" + bytesReceived + " bytes) in, " +
+	    framesSent + " frames (" + bytesSent + " bytes) out, " +
+	    crcErrors + " crc errors, " + resyncs + " resyncs, " +
+	    oversizeFrames + " oversize, " + unknownPacketTypes + " unknown, " +
+	    ackTimeouts + " ack timeouts, " + ackRetries + " retries, " +
+	    ackFailures + " failures, " + getReceiveQueueDropped() + " dropped";
+    }
+}
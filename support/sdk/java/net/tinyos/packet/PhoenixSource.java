@@ -44,12 +44,14 @@ package net.tinyos.packet;
 import net.tinyos.util.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A PhoenixSource builds upon a PacketSource to provide the following
  * features:
  * - automatic reading and dispatching of packets (registerPacketListener
- *   and deregisterPacketListener)
+ *   and deregisterPacketListener), either in the PhoenixSource thread or
+ *   through a per-listener queue and thread (see AsyncPacketListener)
  * - automatic source restarting (via setResurrection), off by default
  *
  * PhoenixSources are threads and hence need to be started. PhoenixSources
@@ -58,16 +60,30 @@ import java.util.*;
  *
  * net.tinyos.message.MoteIF builds upon a PhoenixSource, not a PacketSource.
  *
- * PhoenixSources are built using the makePhoenix methods in BuildSource
+ * PhoenixSources are built using the makePhoenix methods in BuildSource,
+ * or shared between the parts of a program using the makeSharedPhoenix
+ * methods (shared PhoenixSources must be released, not shut down).
  */
 public class PhoenixSource extends Thread implements PhoenixError {
+    // How long each read waits before checking for shutdown (ms)
+    private static final int READ_SLICE = 1000;
+
+    // How long shutdown waits for the thread to stop before closing the
+    // source from under it (ms)
+    private static final int SHUTDOWN_TIMEOUT = 2000;
+
     private PacketSource source;
     private Messenger messages;
-    private Vector listeners;
-    private boolean phoenixLike = true; // does it rise from the ashes?
+    private Vector<PacketListenerIF> listeners;
+    private volatile boolean phoenixLike = true; // does it rise from the ashes?
     private boolean started;
     private PhoenixError errorHandler = this;
 
+    // Set for shared PhoenixSources (see BuildSource.makeSharedPhoenix),
+    // and protected by its registry
+    private String sharedName;
+    private int references;
+
     protected void message(String s) {
 	if (messages != null)
 	    messages.message(s);
@@ -100,19 +116,91 @@ public class PhoenixSource extends Thread implements PhoenixError {
     PhoenixSource(PacketSource source, Messenger messages) {
 	this.source = source;
 	this.messages = messages;
-	listeners = new Vector();
+	listeners = new Vector<PacketListenerIF>();
     }
 
     /**
      * Shutdown a PhoenixSource (closes underlying packet source)
      * close errors are NOT reported to the error handler, instead 
-     * a simple message is sent
+     * a simple message is sent. The PhoenixSource thread is interrupted,
+     * and shutdown waits (for a bounded time) for it to stop reading
+     * before closing the source.
      */
-    synchronized public void shutdown() {
+    public void shutdown() {
 	phoenixLike = false;
+	interrupt();
+	if (Thread.currentThread() != this) {
+	    try {
+		join(SHUTDOWN_TIMEOUT);
+	    }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	// Also covers a thread that was never started, or that is stuck
+	// in a listener or a source that ignores read timeouts
+	closeSource();
+
+	// Asynchronous listeners still get the packets already queued
+	synchronized (listeners) {
+	    Enumeration<PacketListenerIF> e = listeners.elements();
+	    while (e.hasMoreElements()) {
+		PacketListenerIF listener = e.nextElement();
+		if (listener instanceof AsyncPacketListener)
+		    ((AsyncPacketListener)listener).close();
+	    }
+	}
+    }
+
+    /**
+     * Release this PhoenixSource. A PhoenixSource obtained from
+     * makeSharedPhoenix in BuildSource is shut down when its last user
+     * releases it (users should deregister their listeners first). Other
+     * PhoenixSources are shut down immediately.
+     */
+    public void release() {
+	if (BuildSource.releaseShared(this)) {
+	    try {
+		shutdown();
+	    }
+	    finally {
+		BuildSource.sharedShutdown(this);
+	    }
+	}
+    }
+
+    // true once shutdown has been called
+    boolean isShutdown() {
+	return !phoenixLike;
+    }
+
+    // Shared PhoenixSource registry support, called with the registry
+    // locked (see BuildSource.makeSharedPhoenix)
+    String getSharedName() {
+	return sharedName;
+    }
+
+    void setSharedName(String sharedName) {
+	this.sharedName = sharedName;
+    }
+
+    void addReference() {
+	references++;
+    }
+
+    // Returns the number of references left
+    int dropReference() {
+	return --references;
+    }
+
+    // true once the last reference has been dropped
+    boolean isReleased() {
+	return references <= 0;
+    }
+
+    private void closeSource() {
 	try {
 	    source.close();
-	    interrupt();
 	}
 	catch (IOException e) {
 	    message("close error " + e);
@@ -149,25 +237,70 @@ public class PhoenixSource extends Thread implements PhoenixError {
 	listeners.addElement(listener);
     }
 
+    /**
+     * Register a new packet listener which is invoked in a thread of its
+     * own, so that it doesn't hold up this PhoenixSource and its other
+     * listeners
+     * @param listener listener.packetReceived will be invoked for
+     *   all packets received on this packet source
+     * @param capacity How many packets can wait for the listener
+     * @param policy What to do with packets when capacity packets are
+     *   waiting (PacketQueue.DROP_OLDEST, DROP_NEWEST or BLOCK)
+     * @return The listener's queue, which counts delivered and dropped
+     *   packets
+     */
+    public AsyncPacketListener registerPacketListener(PacketListenerIF listener,
+						      int capacity, int policy) {
+	AsyncPacketListener async =
+	    new AsyncPacketListener(listener, capacity, policy);
+	listeners.addElement(async);
+	return async;
+    }
+
     /**
      * Remove a packet listener
      * @param listener Listener to remove (if it was registered twice,
      *   only one entry will be removed)
      */
     public void deregisterPacketListener(PacketListenerIF listener) {
-	listeners.remove(listener);
+	synchronized (listeners) {
+	    for (int i = 0; i < listeners.size(); i++) {
+		PacketListenerIF registered = listeners.elementAt(i);
+		if (registered instanceof AsyncPacketListener &&
+		    ((AsyncPacketListener)registered).getListener() == listener) {
+		    listeners.removeElementAt(i);
+		    ((AsyncPacketListener)registered).close();
+		    return;
+		}
+		if (listener.equals(registered)) {
+		    listeners.removeElementAt(i);
+		    return;
+		}
+	    }
+	}
     }
 
     private void packetDipatchLoop() throws IOException {
-	for (;;) {
-	    dispatch(source.readPacket());
+	while (phoenixLike) {
+	    byte[] packet;
+
+	    try {
+		packet = AbstractSource.readTimed(source, READ_SLICE,
+						  TimeUnit.MILLISECONDS);
+	    }
+	    catch (InterruptedIOException e) {
+		// shutdown, or a stray interrupt. The source is still open.
+		continue;
+	    }
+	    if (packet != null)
+		dispatch(packet);
 	}
     }
 
     private void dispatch(byte[] packet) {
-	Enumeration e = listeners.elements();
+	Enumeration<PacketListenerIF> e = listeners.elements();
 	while (e.hasMoreElements()) {
-	    PacketListenerIF listener = (PacketListenerIF)e.nextElement();
+	    PacketListenerIF listener = e.nextElement();
 	    listener.packetReceived(packet);
 	}
     }
@@ -185,6 +318,10 @@ public class PhoenixSource extends Thread implements PhoenixError {
 		    errorHandler.error(e);
 	    }
 	}
+	stopped();
+	// Don't let shutdown's interrupt disturb closing the source
+	Thread.interrupted();
+	closeSource();
     }
 
     /** 
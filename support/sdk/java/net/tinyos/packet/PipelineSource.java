@@ -0,0 +1,158 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A packet source which passes the packets received from another packet
+ * source through a pipeline of stages (see PacketStage), e.g., filters,
+ * sampling or rate limiting. Packets dropped by a stage never reach the
+ * pipeline's readers (such as a PhoenixSource and its listeners).
+ *
+ * Stages look at each packet through a reused PacketView, and passed
+ * packets are returned as received, so the pipeline doesn't copy
+ * packets. Written packets are passed to the underlying source
+ * unchanged.
+ *
+ * Pipelines are built using makePipeline in BuildSource, and stages are
+ * added with <code>add</code>, e.g.,
+ *   BuildSource.makePipeline(source).add(new SampleStage(10))
+ * or from packet source strings (see BuildSource.sourceHelp), e.g.,
+ * serial@/dev/ttyUSB0:telosb|amtype=10|sample=10.
+ */
+public class PipelineSource extends AbstractSource
+{
+    private PacketSource source;
+    private volatile PacketStage[] stages = new PacketStage[0];
+    private PacketView view = new PacketView();
+
+    PipelineSource(PacketSource source) {
+	super(source.getName());
+	this.source = source;
+    }
+
+    /**
+     * Add a stage at the end of this pipeline
+     * @param stage The stage to add
+     * @return This pipeline
+     */
+    public synchronized PipelineSource add(PacketStage stage) {
+	PacketStage[] more = new PacketStage[stages.length + 1];
+	System.arraycopy(stages, 0, more, 0, stages.length);
+	more[stages.length] = stage;
+	stages = more;
+	name = name + "|" + stage;
+	return this;
+    }
+
+    /**
+     * @return This pipeline's underlying packet source
+     */
+    public PacketSource getSource() {
+	return source;
+    }
+
+    /**
+     * @return This pipeline's stages, in order
+     */
+    public PacketStage[] getStages() {
+	return stages.clone();
+    }
+
+    protected void openSource() throws IOException {
+	source.open(messages);
+    }
+
+    protected void closeSource() throws IOException {
+	try {
+	    source.close();
+	}
+	finally {
+	    PacketStage[] s = stages;
+	    for (int i = 0; i < s.length; i++)
+		if (s[i] instanceof Closeable) {
+		    try {
+			((Closeable)s[i]).close();
+		    }
+		    catch (IOException e) {
+			message(name + ": " + e.getMessage());
+		    }
+		}
+	}
+    }
+
+    // Run packet through the stages, returns true if it passes them all
+    private boolean pass(byte[] packet) throws IOException {
+	PacketStage[] s = stages;
+
+	synchronized (view) {
+	    view.set(packet, 0, packet.length);
+	    for (int i = 0; i < s.length; i++)
+		if (!s[i].process(view))
+		    return false;
+	    return true;
+	}
+    }
+
+    protected byte[] readSourcePacket() throws IOException {
+	for (;;) {
+	    byte[] packet = source.readPacket();
+	    if (pass(packet))
+		return packet;
+	}
+    }
+
+    protected byte[] readSourcePacket(long deadline) throws IOException {
+	for (;;) {
+	    byte[] packet = readTimed(source,
+				      deadline - System.currentTimeMillis(),
+				      TimeUnit.MILLISECONDS);
+	    if (packet == null || pass(packet))
+		return packet;
+	}
+    }
+
+    protected boolean writeSourcePacket(byte[] packet) throws IOException {
+	return source.writePacket(packet);
+    }
+}
@@ -0,0 +1,83 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+/**
+ * A pipeline stage which limits the packet rate with a token bucket:
+ * the bucket holds up to burst tokens, and fills at rate tokens per
+ * second. Each packet passed takes a token; packets which arrive when
+ * the bucket is empty are dropped (delaying them would hold up the
+ * packet source).
+ */
+public class RateLimitStage implements PacketStage
+{
+    private double rate;
+    private int burst;
+    private double tokens;
+    private long lastFill; // System.nanoTime() of the last refill
+
+    /**
+     * @param rate Long-term packet rate (packets/s)
+     * @param burst How many packets may be passed in a burst (at least 1)
+     */
+    public RateLimitStage(double rate, int burst) {
+	if (!(rate > 0) || burst < 1)
+	    throw new IllegalArgumentException("bad rate limit " + rate + "," + burst);
+	this.rate = rate;
+	this.burst = burst;
+	tokens = burst;
+	lastFill = System.nanoTime();
+    }
+
+    public boolean process(PacketView packet) {
+	long now = System.nanoTime();
+	tokens = Math.min(burst, tokens + (now - lastFill) * rate / 1e9);
+	lastFill = now;
+	if (tokens < 1)
+	    return false;
+	tokens -= 1;
+	return true;
+    }
+
+    public String toString() {
+	return "ratelimit=" + rate + "," + burst;
+    }
+}
@@ -0,0 +1,224 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A byte source that replays the received bytes of a capture file (see
+ * CaptureFile), for reproducing real traffic without hardware. Bytes
+ * are delivered with their original inter-arrival timing scaled by a
+ * speed-up factor, or as fast as they are read. Bytes written to the
+ * source are discarded. Reads fail with "end of capture" once the
+ * capture is exhausted.
+ *
+ * The capture is memory-mapped, so it must be smaller than 2GB.
+ */
+public class ReplayByteSource implements TimedByteSource
+{
+    private String fileName;
+    private double speed;
+
+    private ByteBuffer capture;
+    private volatile boolean opened;
+
+    private int recordLeft; // bytes left in current record
+    private boolean timed; // false for unthrottled replay or untimed files
+    private long firstTime; // capture time of first record
+    private long startTime; // System.nanoTime() at first record
+    private boolean waiting; // current record is not due yet
+    private long due; // System.nanoTime() at which current record is due
+
+    /**
+     * Create a replay source
+     * @param fileName The capture file
+     * @param speed Speed-up relative to the original timing (1 for real
+     *   time), or 0 to replay as fast as possible
+     */
+    public ReplayByteSource(String fileName, double speed) {
+	this.fileName = fileName;
+	this.speed = speed;
+    }
+
+    public void open() throws IOException {
+	RandomAccessFile file = new RandomAccessFile(fileName, "r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    if (channel.size() > Integer.MAX_VALUE)
+		throw new IOException(fileName + ": capture too large");
+	    capture = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+	finally {
+	    file.close();
+	}
+
+	if (hasMagic()) {
+	    capture.position(CaptureFile.HEADER_SIZE);
+	    recordLeft = 0;
+	    timed = speed > 0;
+	}
+	else {
+	    recordLeft = capture.remaining();
+	    timed = false;
+	}
+	startTime = -1;
+	waiting = false;
+	opened = true;
+    }
+
+    private boolean hasMagic() throws IOException {
+	if (capture.remaining() < CaptureFile.HEADER_SIZE)
+	    return false;
+	for (int i = 0; i < CaptureFile.MAGIC.length; i++)
+	    if (capture.get(i) != CaptureFile.MAGIC[i])
+		return false;
+	if (capture.getShort(CaptureFile.MAGIC.length) != CaptureFile.VERSION)
+	    throw new IOException(fileName + ": unknown capture version");
+	return true;
+    }
+
+    public void close() {
+	opened = false;
+    }
+
+    // Move to the next received-bytes record, and schedule it
+    private void nextRecord() throws IOException {
+	for (;;) {
+	    if (capture.remaining() < CaptureFile.RECORD_HEADER_SIZE) {
+		close();
+		throw new IOException("end of capture");
+	    }
+	    byte direction = capture.get();
+	    long time = capture.getLong();
+	    int length = capture.getInt();
+	    if (length < 0 || length > capture.remaining()) {
+		close();
+		throw new IOException(fileName + ": truncated capture");
+	    }
+
+	    if (direction != CaptureFile.READ || length == 0) {
+		capture.position(capture.position() + length);
+		continue;
+	    }
+
+	    recordLeft = length;
+	    if (timed)
+		schedule(time);
+	    return;
+	}
+    }
+
+    // Work out when the record captured at time is due
+    private void schedule(long time) {
+	if (startTime < 0) {
+	    firstTime = time;
+	    startTime = System.nanoTime();
+	    return;
+	}
+	due = startTime + (long)((time - firstTime) / speed);
+	waiting = true;
+    }
+
+    // Wait until the current record is due, or deadline (0 for never)
+    // passes. Returns false on timeout.
+    private boolean awaitDue(long deadline) throws IOException {
+	// Sleep in steps of at most 100ms, so that close() is noticed
+	long delay;
+	while (waiting && (delay = due - System.nanoTime()) > 0) {
+	    if (delay > 100000000)
+		delay = 100000000;
+	    if (deadline != 0) {
+		long left = (deadline - System.currentTimeMillis()) * 1000000;
+		if (left <= 0)
+		    return false;
+		if (delay > left)
+		    delay = left;
+	    }
+	    try {
+		Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+	    }
+	    catch (InterruptedException e) {
+		throw new InterruptedIOException("interrupted");
+	    }
+	    if (!opened)
+		throw new IOException("closed");
+	}
+	waiting = false;
+	return true;
+    }
+
+    public byte readByte() throws IOException {
+	byte[] b = new byte[1];
+	readBytes(b, 0, 1);
+	return b[0];
+    }
+
+    public int readBytes(byte[] buffer, int off, int len) throws IOException {
+	return readBytes(buffer, off, len, 0);
+    }
+
+    public synchronized int readBytes(byte[] buffer, int off, int len,
+				      long deadline) throws IOException {
+	if (!opened)
+	    throw new IOException("not open");
+	if (recordLeft == 0)
+	    nextRecord();
+	if (!awaitDue(deadline))
+	    return 0;
+
+	if (len > recordLeft)
+	    len = recordLeft;
+	capture.get(buffer, off, len);
+	recordLeft -= len;
+	return len;
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] buffer, int off, int len) throws IOException {
+	if (!opened)
+	    throw new IOException("not open");
+    }
+}
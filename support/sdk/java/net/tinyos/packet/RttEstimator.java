@@ -0,0 +1,146 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+
+package net.tinyos.packet;
+
+/**
+ * Round-trip time estimator for acknowledged packets. Follows the TCP
+ * retransmission timer (RFC 6298): a smoothed round-trip time (SRTT) and
+ * round-trip variation (RTTVAR) are maintained from ACK delays, and the
+ * ACK timeout is SRTT + 4 * RTTVAR, bounded by a minimum and maximum
+ * timeout. Each timeout doubles the ACK timeout until the next sample.
+ *
+ * Callers must follow Karn's rule: ACKs for retransmitted frames are
+ * ambiguous and must not be sampled.
+ */
+public class RttEstimator
+{
+    private int minTimeout, maxTimeout;	// in milliseconds
+    private int timeout;		// in milliseconds
+    private long srtt, rttvar;		// in microseconds, srtt < 0 if unknown
+    private long samples, backoffs;
+
+    /**
+     * Create an estimator. The timeout is maxTimeout until the first
+     * sample is received.
+     * @param minTimeout Smallest ACK timeout, in milliseconds
+     * @param maxTimeout Largest ACK timeout, in milliseconds
+     */
+    public RttEstimator(int minTimeout, int maxTimeout) {
+	this.minTimeout = minTimeout;
+	this.maxTimeout = maxTimeout;
+	timeout = maxTimeout;
+	srtt = -1;
+    }
+
+    /**
+     * Report the delay between sending a frame (sent once) and receiving
+     * its ACK
+     * @param rttNanos Round-trip time, in nanoseconds
+     */
+    synchronized void sample(long rttNanos) {
+	long rtt = rttNanos / 1000;
+
+	if (srtt < 0) {
+	    srtt = rtt;
+	    rttvar = rtt / 2;
+	}
+	else {
+	    long delta = srtt - rtt;
+	    rttvar = (3 * rttvar + (delta < 0 ? -delta : delta)) / 4;
+	    srtt = (7 * srtt + rtt) / 8;
+	}
+	samples++;
+
+	// Timeout is in ms, with a 1ms clock granularity
+	long rto = (srtt + Math.max(1000, 4 * rttvar) + 999) / 1000;
+	timeout = (int)Math.max(minTimeout, Math.min(maxTimeout, rto));
+    }
+
+    /**
+     * Report an ACK timeout
+     */
+    synchronized void backoff() {
+	timeout = Math.min(maxTimeout, 2 * timeout);
+	backoffs++;
+    }
+
+    /**
+     * @return The current ACK timeout, in milliseconds
+     */
+    public synchronized int getTimeout() {
+	return timeout;
+    }
+
+    /**
+     * @return The smoothed round-trip time, in microseconds, or -1 if no
+     *   round-trip has been measured yet
+     */
+    public synchronized long getSmoothedRtt() {
+	return srtt;
+    }
+
+    /**
+     * @return The round-trip time variation, in microseconds
+     */
+    public synchronized long getRttVariation() {
+	return rttvar;
+    }
+
+    /**
+     * @return The number of round-trip times measured
+     */
+    public synchronized long getSampleCount() {
+	return samples;
+    }
+
+    /**
+     * @return The number of ACK timeouts
+     */
+    public synchronized long getTimeoutCount() {
+	return backoffs;
+    }
+
+    public synchronized String toString() {
+	return "srtt " + srtt + "us, rttvar " + rttvar + "us, timeout " +
+	    timeout + "ms (" + samples + " samples, " + backoffs + " timeouts)";
+    }
+}
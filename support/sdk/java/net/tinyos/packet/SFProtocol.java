@@ -59,9 +59,14 @@ abstract public class SFProtocol extends AbstractSource
     // current protocols:
     // ' ': initial protocol, no further connection data, packets are
     //      1-byte length followed by n-bytes data. Length must be at least 1.
-    final static byte VERSION[] = {'U', ' '};
+    // '!': as ' ', but with a 2-byte length (most significant byte first),
+    //      for packets of up to 65535 bytes
+    final static byte VERSION[] = {'U', '!'};
     int version; // The protocol version we're running (negotiated)
 
+    // How often waitForInput polls the input stream (ms)
+    protected static final int POLL_INTERVAL = 10;
+
     protected InputStream is;
     protected OutputStream os;
 
@@ -86,31 +91,66 @@ abstract public class SFProtocol extends AbstractSource
 	// Handle the different protocol versions (currently only one)
 	// Any connection-time data-exchange goes here
 	switch (version) {
-	case ' ':
+	case ' ': case '!':
 	    break;
 	default:
 	    throw new IOException("bad protocol version");
 	}
     }
 	
+    // Number of bytes in the packet length
+    private int lengthSize() {
+	return version == ' ' ? 1 : 2;
+    }
+
     protected byte[] readSourcePacket() throws IOException {
-	// Protocol is straightforward: 1 size byte, <n> data bytes
-	byte[] size = readN(1);
+	// Protocol is straightforward: 1 or 2 size bytes, <n> data bytes
+	byte[] size = readN(lengthSize());
+	int length = 0;
 
-	if (size[0] == 0)
+	for (int i = 0; i < size.length; i++)
+	    length = length << 8 | size[i] & 0xff;
+	if (length == 0)
 	    throw new IOException("0-byte packet");
-	byte[] read = readN(size[0] & 0xff);
+	byte[] read = readN(length);
 	//Dump.dump("reading", read);
 	return read;
     }
 
+    protected byte[] readSourcePacket(long deadline) throws IOException {
+	// The deadline only applies until a packet starts arriving: giving
+	// up part way through a packet would lose sync with our partner
+	if (!waitForInput(deadline))
+	    return null;
+	return readSourcePacket();
+    }
+
+    // Wait until input is available or deadline passes. Returns false on
+    // timeout. This version polls is.available(), subclasses with a
+    // better way to wait should override it.
+    protected boolean waitForInput(long deadline) throws IOException {
+	for (;;) {
+	    if (Thread.interrupted())
+		throw new InterruptedIOException("interrupted");
+	    if (is.available() > 0)
+		return true;
+	    long left = deadline - System.currentTimeMillis();
+	    if (left <= 0)
+		return false;
+	    try {
+		Thread.sleep(Math.min(left, POLL_INTERVAL));
+	    }
+	    catch (InterruptedException e) {
+		throw new InterruptedIOException("interrupted");
+	    }
+	}
+    }
+
     protected byte[] readN(int n) throws IOException {
 	byte[] data = new byte[n];
 	int offset = 0;
 
-	// A timeout would be nice, but there's no obvious way to
-	// write it before java 1.4 (probably some trickery with
-	// a thread and closing the stream would do the trick, but...)
+	// Reads within a packet have no timeout, see readSourcePacket(long)
 	while (offset < n) {
 	  int count = is.read(data, offset, n - offset);
 
@@ -122,13 +162,22 @@ abstract public class SFProtocol extends AbstractSource
     }
 
     protected boolean writeSourcePacket(byte[] packet) throws IOException {
-	if (packet.length > 255)
+	int lengthSize = lengthSize();
+
+	if (packet.length >= 1 << 8 * lengthSize)
 	    throw new IOException("packet too long");
 	if (packet.length == 0)
 	    throw new IOException("packet too short");
 	//Dump.dump("writing", packet);
-	os.write((byte)packet.length);
-	os.write(packet);
+
+	// Send length and data together
+	byte[] framed = new byte[lengthSize + packet.length];
+	for (int i = lengthSize - 1, length = packet.length; i >= 0; i--) {
+	    framed[i] = (byte)length;
+	    length >>= 8;
+	}
+	System.arraycopy(packet, 0, framed, lengthSize, packet.length);
+	os.write(framed);
 	os.flush();
 	return true;
     }
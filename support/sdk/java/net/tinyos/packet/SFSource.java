@@ -44,33 +44,47 @@
 package net.tinyos.packet;
 
 import java.io.*;
-import java.net.*;
 
 /**
  * Packet source (tcp/ip client) for the new serial forwarder protocol
  */
 class SFSource extends SFProtocol {
-    private Socket socket;
-    private String host;
-    private int port;
+    private ChannelByteSource channel;
 
     /**
      * Packetizers are built using the makeXXX methods in BuildSource
      */
     SFSource(String host, int port) {
 	super("sf@" + host + ":" + port);
-	this.host = host;
-	this.port = port;
+	channel = new ChannelByteSource(host, port);
+    }
+
+    ChannelByteSource getChannel() {
+	return channel;
+    }
+
+    void setName(String name) {
+	this.name = name;
     }
 
     protected void openSource() throws IOException {
-	socket = new Socket(host, port);
-	is = socket.getInputStream();
-	os = socket.getOutputStream();
-	super.openSource();
+	channel.open();
+	is = channel.getInputStream();
+	os = channel.getOutputStream();
+	try {
+	    super.openSource();
+	}
+	catch (IOException e) {
+	    channel.close();
+	    throw e;
+	}
     }
 
     protected void closeSource() throws IOException {
-	socket.close();
+	channel.close();
+    }
+
+    protected boolean waitForInput(long deadline) throws IOException {
+	return channel.waitForInput(deadline);
     }
 }
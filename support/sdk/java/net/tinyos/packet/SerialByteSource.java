@@ -43,28 +43,81 @@ package net.tinyos.packet;
  */
 
 import java.io.*;
+import java.nio.*;
 import net.tinyos.comm.*;
 
 /**
  * A serial port byte source using net.tinyos.comm
+ *
+ * Reads and writes use the toscomm library's direct buffer natives
+ * (NativeSerial.read/write(ByteBuffer)). Libraries built before these
+ * were added lack them: the first open detects this, and this and later
+ * sources then use the port's streams, waiting for DATA_AVAILABLE events.
  */
 public class SerialByteSource extends StreamByteSource implements
     SerialPortListener {
-  private SerialPort serialPort;
+  // How long a read waits in the native code before checking for
+  // interrupts (ms)
+  private static final int READ_SLICE = 100;
+
+  private static final int BUFFER_SIZE = 4096;
+
+  // Whether the toscomm library has the direct buffer natives, null
+  // until the first open finds out
+  private static Boolean directIO;
+
+  private TOSSerial serialPort;
+
+  // Whether this source uses the direct buffer natives
+  private boolean direct;
+
+  // Notified on DATA_AVAILABLE events, when not direct
+  private Object sync = new Object();
 
   private String portName;
 
   private int baudRate;
 
+  // Reads and writes go through direct buffers, so the native code
+  // accesses them without copying. inBuffer is kept ready for get().
+  private ByteBuffer inBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private ByteBuffer outBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
   public SerialByteSource(String portName, int baudRate) {
     this.portName = portName;
     this.baudRate = baudRate;
+    inBuffer.flip();
   }
 
   public void openStreams() throws IOException {
+    direct = directIO != Boolean.FALSE;
+    openPort();
+    inBuffer.clear();
+    if (directIO == null) {
+      // Probe with a read that doesn't wait (keeping any bytes read)
+      try {
+        serialPort.read(inBuffer, 0);
+        directIO = Boolean.TRUE;
+      } catch (UnsatisfiedLinkError e) {
+        directIO = Boolean.FALSE;
+        direct = false;
+        serialPort.close();
+        openPort();
+      } catch (Exception e) {
+        serialPort.close();
+        throw new IOException("Could not read " + portName + ": "
+            + e.getMessage());
+      }
+    }
+    inBuffer.flip();
+  }
+
+  // Open and configure the port, with serial events if it's not direct
+  private void openPort() throws IOException {
     // if (serialPort == null) {
     try {
-      serialPort = new TOSSerial(portName);
+      serialPort = new TOSSerial(portName, !direct);
     } catch (Exception e) {
       throw new IOException("Could not open " + portName + ": "
           + e.getMessage());
@@ -77,12 +130,10 @@ public class SerialByteSource extends StreamByteSource implements
     try {
       // serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
       serialPort.setSerialPortParams(baudRate, 8, SerialPort.STOPBITS_1, false);
-      serialPort.addListener(this);
-      
-      serialPort.notifyOn(SerialPortEvent.DATA_AVAILABLE, true);
-      serialPort.notifyOn(SerialPortEvent.OUTPUT_EMPTY, true);
-
-      
+      if (!direct) {
+        serialPort.addListener(this);
+        serialPort.notifyOn(SerialPortEvent.DATA_AVAILABLE, true);
+      }
     } catch (Exception e) {
       serialPort.close();
       throw new IOException("Could not configure " + portName + ": "
@@ -96,7 +147,39 @@ public class SerialByteSource extends StreamByteSource implements
   public void closeStreams() throws IOException {
     serialPort.close();
     synchronized (sync) {
-      sync.notify();
+      sync.notifyAll();
+    }
+  }
+
+  public void serialEvent(SerialPortEvent ev) {
+    if (ev.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+      synchronized (sync) {
+        sync.notifyAll();
+      }
+    }
+  }
+
+  // Wait until the port's input stream has bytes available, or deadline
+  // (0 for never) passes. Returns false on timeout. Used when not direct.
+  private boolean awaitStream(long deadline) throws IOException {
+    synchronized (sync) {
+      for (;;) {
+        if (!opened)
+          throw new IOException("closed");
+        if (is.available() > 0)
+          return true;
+        long wait = 0;
+        if (deadline != 0) {
+          wait = deadline - System.currentTimeMillis();
+          if (wait <= 0)
+            return false;
+        }
+        try {
+          sync.wait(wait);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("interrupted");
+        }
+      }
     }
   }
 
@@ -116,32 +199,107 @@ public class SerialByteSource extends StreamByteSource implements
     return "Listing available comm ports is no longer supported.";
   }
 
-  Object sync = new Object();
+  // Refill inBuffer from the serial port, giving up at deadline (0 for
+  // never). Returns false on timeout. On Linux at least, the native reads
+  // are not interruptible, so we wait in READ_SLICE ms steps and check
+  // for interrupts and the deadline in between.
+  private boolean fill(long deadline) throws IOException {
+    int nread = 0;
+    boolean interrupted = false;
+    String error = "read error";
 
-  public byte readByte() throws IOException {
-    // On Linux at least, javax.comm input streams are not interruptible.
-    // Make them so, relying on the DATA_AVAILABLE serial event.
-    synchronized (sync) {
-      while (opened && is.available() == 0) {
-        try {
-          sync.wait();
-        } catch (InterruptedException e) {
-          close();
-          throw new IOException("interrupted");
+    inBuffer.clear();
+    try {
+      while (opened && !(interrupted = Thread.interrupted())) {
+        int slice = READ_SLICE;
+        if (deadline != 0) {
+          long left = deadline - System.currentTimeMillis();
+          if (left <= 0)
+            break;
+          if (left < slice)
+            slice = (int)left;
         }
+        if ((nread = serialPort.read(inBuffer, slice)) != 0)
+          break;
       }
+    } catch (Exception e) {
+      // e.g., the port hung up
+      nread = -1;
+      error = "read error (" + e.getMessage() + ")";
     }
+    inBuffer.flip();
+    if (nread > 0)
+      return true;
+    if (interrupted)
+      throw new InterruptedIOException("interrupted");
+    if (opened && nread == 0)
+      return false;
 
-    if( opened )
-    	return super.readByte();
-    else
-    	throw new IOException("closed");
+    String reason = !opened ? "closed" : error;
+    close();
+    throw new IOException(reason);
   }
 
-  public void serialEvent(SerialPortEvent ev) {
-    if (ev.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
-      synchronized (sync) {
-        sync.notify();
+  public byte readByte() throws IOException {
+    if (!opened)
+      throw new IOException("not open");
+    if (!direct) {
+      awaitStream(0);
+      return super.readByte();
+    }
+
+    synchronized (inBuffer) {
+      if (!inBuffer.hasRemaining())
+        fill(0);
+      return inBuffer.get();
+    }
+  }
+
+  public int readBytes(byte[] buffer, int off, int len) throws IOException {
+    return readBytes(buffer, off, len, 0);
+  }
+
+  public int readBytes(byte[] buffer, int off, int len, long deadline)
+      throws IOException {
+    if (!opened)
+      throw new IOException("not open");
+    if (!direct)
+      return awaitStream(deadline) ? super.readBytes(buffer, off, len) : 0;
+
+    synchronized (inBuffer) {
+      if (!inBuffer.hasRemaining() && !fill(deadline))
+        return 0;
+      if (len > inBuffer.remaining())
+        len = inBuffer.remaining();
+      inBuffer.get(buffer, off, len);
+      return len;
+    }
+  }
+
+  public void writeBytes(byte[] buffer, int off, int len) throws IOException {
+    if (!opened)
+      throw new IOException("not open");
+    if (!direct) {
+      super.writeBytes(buffer, off, len);
+      return;
+    }
+
+    synchronized (outBuffer) {
+      try {
+        while (len > 0) {
+          int count = len < BUFFER_SIZE ? len : BUFFER_SIZE;
+
+          outBuffer.clear();
+          outBuffer.put(buffer, off, count);
+          outBuffer.flip();
+          if (serialPort.write(outBuffer) < count)
+            throw new IOException("closed");
+          off += count;
+          len -= count;
+        }
+      } catch (Exception e) {
+        close();
+        throw new IOException("write error");
       }
     }
   }
@@ -45,8 +45,11 @@ package net.tinyos.packet;
 
 import java.io.*;
 
-abstract public class StreamByteSource implements ByteSource
+abstract public class StreamByteSource implements TimedByteSource
 {
+    // How often reads with a deadline poll for input (ms)
+    protected static final int POLL_INTERVAL = 10;
+
     protected InputStream is;
     protected OutputStream os;
     protected boolean opened;
@@ -95,12 +98,78 @@ abstract public class StreamByteSource implements ByteSource
 	return (byte)serialByte;
     }
 
+    public int readBytes(byte[] buffer, int off, int len) throws IOException {
+	int count;
+
+	if (!opened)
+	    throw new IOException("not open");
+
+	try {
+	    count = is.read(buffer, off, len);
+	}
+	catch (IOException e) {
+	    count = -1;
+	}
+
+	if (count <= 0) {
+	    close();
+	    throw new IOException("read error");
+	}
+
+	return count;
+    }
+
+    // Streams can't wait with a timeout, so reads with a deadline poll
+    // available(). Note that a stream which reports nothing available at
+    // end-of-stream is only found to have failed by a read without a
+    // deadline.
+    public int readBytes(byte[] buffer, int off, int len, long deadline)
+	throws IOException {
+	if (!opened)
+	    throw new IOException("not open");
+
+	if (deadline != 0)
+	    for (;;) {
+		if (Thread.interrupted())
+		    throw new InterruptedIOException("interrupted");
+
+		int ready;
+		try {
+		    ready = is.available();
+		}
+		catch (IOException e) {
+		    ready = -1;
+		}
+		if (ready < 0) {
+		    close();
+		    throw new IOException("read error");
+		}
+		if (ready > 0)
+		    break;
+
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+		    return 0;
+		try {
+		    Thread.sleep(Math.min(left, POLL_INTERVAL));
+		}
+		catch (InterruptedException e) {
+		    throw new InterruptedIOException("interrupted");
+		}
+	    }
+	return readBytes(buffer, off, len);
+    }
+
     public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] buffer, int off, int len) throws IOException {
 	if (!opened)
 	    throw new IOException("not open");
 
 	try {
-	    os.write(bytes);
+	    os.write(buffer, off, len);
 	    os.flush();
 	}
 	catch (IOException e) {
@@ -0,0 +1,224 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import net.tinyos.comm.*;
+
+/**
+ * A serial port byte source that doesn't need the toscomm JNI library
+ * (see net.tinyos.comm.TTYSerial). Linux only.
+ *
+ * Reads with a deadline poll for input, so interrupting them leaves the
+ * source open. Reads without one block in the port's channel, which is
+ * closed if the reader is interrupted: the source is then closed too.
+ */
+public class TTYByteSource implements TimedByteSource
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    // How often reads with a deadline poll for input (ms)
+    private static final int POLL_INTERVAL = 10;
+
+    private String portName;
+    private int baudRate;
+    private TTYSerial serialPort;
+    private volatile boolean opened;
+
+    // inBuffer is kept ready for get()
+    private ByteBuffer inBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer outBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public TTYByteSource(String portName, int baudRate) {
+	this.portName = portName;
+	this.baudRate = baudRate;
+	inBuffer.flip();
+    }
+
+    public void open() throws IOException {
+	try {
+	    serialPort = new TTYSerial(portName);
+	}
+	catch (IOException e) {
+	    throw new IOException("Could not open " + portName + ": " +
+				  e.getMessage());
+	}
+
+	try {
+	    serialPort.setSerialPortParams(baudRate, 8, SerialPort.STOPBITS_1, false);
+	}
+	catch (UnsupportedCommOperationException e) {
+	    serialPort.close();
+	    throw new IOException("Could not configure " + portName + ": " +
+				  e.getMessage());
+	}
+	inBuffer.clear();
+	inBuffer.flip();
+	opened = true;
+    }
+
+    public void close() {
+	if (opened) {
+	    opened = false;
+	    serialPort.close();
+	}
+    }
+
+    // Refill inBuffer, waiting for data
+    private void fill() throws IOException {
+	String reason = null;
+
+	// Don't let a pending interrupt close the channel
+	if (Thread.interrupted())
+	    throw new InterruptedIOException("interrupted");
+	inBuffer.clear();
+	try {
+	    if (serialPort.read(inBuffer) <= 0)
+		reason = "read error";
+	}
+	catch (ClosedByInterruptException e) {
+	    reason = "interrupted";
+	}
+	catch (ClosedChannelException e) {
+	    reason = "closed";
+	}
+	catch (IOException e) {
+	    reason = "read error";
+	}
+	inBuffer.flip();
+
+	if (reason != null) {
+	    close();
+	    throw new IOException(reason);
+	}
+    }
+
+    public byte readByte() throws IOException {
+	if (!opened)
+	    throw new IOException("not open");
+
+	synchronized (inBuffer) {
+	    if (!inBuffer.hasRemaining())
+		fill();
+	    return inBuffer.get();
+	}
+    }
+
+    // Wait until input is available or deadline passes. The port's
+    // channel is closed if a blocked read is interrupted, so we poll
+    // rather than read.
+    private boolean awaitInput(long deadline) throws IOException {
+	for (;;) {
+	    if (Thread.interrupted())
+		throw new InterruptedIOException("interrupted");
+	    try {
+		if (serialPort.available() > 0)
+		    return true;
+	    }
+	    catch (IOException e) {
+		String reason = opened ? "read error" : "closed";
+		close();
+		throw new IOException(reason);
+	    }
+	    long left = deadline - System.currentTimeMillis();
+	    if (left <= 0)
+		return false;
+	    try {
+		Thread.sleep(Math.min(left, POLL_INTERVAL));
+	    }
+	    catch (InterruptedException e) {
+		throw new InterruptedIOException("interrupted");
+	    }
+	}
+    }
+
+    public int readBytes(byte[] buffer, int off, int len) throws IOException {
+	return readBytes(buffer, off, len, 0);
+    }
+
+    public int readBytes(byte[] buffer, int off, int len, long deadline)
+	throws IOException {
+	if (!opened)
+	    throw new IOException("not open");
+
+	synchronized (inBuffer) {
+	    if (!inBuffer.hasRemaining()) {
+		if (deadline != 0 && !awaitInput(deadline))
+		    return 0;
+		fill();
+	    }
+	    if (len > inBuffer.remaining())
+		len = inBuffer.remaining();
+	    inBuffer.get(buffer, off, len);
+	    return len;
+	}
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] buffer, int off, int len) throws IOException {
+	if (!opened)
+	    throw new IOException("not open");
+
+	synchronized (outBuffer) {
+	    try {
+		while (len > 0) {
+		    int count = len < BUFFER_SIZE ? len : BUFFER_SIZE;
+
+		    outBuffer.clear();
+		    outBuffer.put(buffer, off, count);
+		    outBuffer.flip();
+		    serialPort.write(outBuffer);
+		    off += count;
+		    len -= count;
+		}
+	    }
+	    catch (IOException e) {
+		close();
+		throw new IOException("write error");
+	    }
+	}
+    }
+}
@@ -0,0 +1,118 @@
+/*									tab:4
+ * Copyright (c) 2000-2003 The Regents of the University  of California.  
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the University of California nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (c) 2002-2003 Intel Corporation
+ * All rights reserved.
+ *
+ * This file is distributed under the terms in the attached INTEL-LICENSE     
+ * file. If you do not find these files, copies can be found by writing to
+ * Intel Research Berkeley, 2150 Shattuck Avenue, Suite 1300, Berkeley, CA, 
+ * 94704.  Attention:  Intel License Inquiry.
+ */
+
+package net.tinyos.packet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A pipeline stage which appends every packet to a file, and passes it
+ * on. Each packet is written as a 2-byte length (most significant byte
+ * first) followed by the packet, as in the serial forwarder protocol.
+ * The file is opened when the first packet arrives, and closed when the
+ * pipeline source is closed. Writes are buffered, and flushed every
+ * FLUSH_INTERVAL ms and on close.
+ */
+public class TeeStage implements PacketStage, Closeable
+{
+    public static final int FLUSH_INTERVAL = 1000;
+
+    // Flushes every open TeeStage
+    private static Timer flusher;
+
+    private String fileName;
+    private OutputStream out;
+    private TimerTask flushTask;
+
+    public TeeStage(String fileName) {
+	this.fileName = fileName;
+    }
+
+    private static synchronized Timer getFlusher() {
+	if (flusher == null)
+	    flusher = new Timer("TeeStage flusher", true);
+	return flusher;
+    }
+
+    public synchronized boolean process(PacketView packet) throws IOException {
+	int length = packet.getLength();
+	if (length > 0xffff)
+	    throw new IOException(fileName + ": packet too long");
+
+	if (out == null) {
+	    out = new BufferedOutputStream(new FileOutputStream(fileName, true));
+	    flushTask = new TimerTask() {
+		    public void run() {
+			flush();
+		    }
+		};
+	    getFlusher().schedule(flushTask, FLUSH_INTERVAL, FLUSH_INTERVAL);
+	}
+	out.write(length >> 8);
+	out.write(length);
+	out.write(packet.getBuffer(), packet.getOffset(), length);
+	return true;
+    }
+
+    private synchronized void flush() {
+	if (out != null)
+	    try {
+		out.flush();
+	    }
+	    catch (IOException e) {
+		// reported by the next write or close
+	    }
+    }
+
+    public synchronized void close() throws IOException {
+	if (out != null) {
+	    OutputStream o = out;
+	    out = null;
+	    flushTask.cancel();
+	    flushTask = null;
+	    o.close();
+	}
+    }
+
+    public String toString() {
+	return "tee=" + fileName;
+    }
+}
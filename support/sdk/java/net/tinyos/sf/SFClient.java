@@ -63,6 +63,11 @@ import java.util.*;
 import net.tinyos.packet.*;
 
 public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
+    // Packets waiting to be sent to a slow client. Once this many are
+    // waiting, the oldest are dropped, rather than holding up the
+    // serial forwarder's packet source and other clients.
+    private static final int CLIENT_QUEUE_SIZE = 1024;
+
     private Thread thread;
     private Socket socket = null;
     private SerialForwarder sf;
@@ -94,7 +99,8 @@ public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
     private void init() throws IOException {
 	sf.incrementClients();
 	open(sf);
-	listenServer.source.registerPacketListener(this);
+	listenServer.source.registerPacketListener(this, CLIENT_QUEUE_SIZE,
+						   PacketQueue.DROP_OLDEST);
     }
 
     public void shutdown() {
@@ -10,20 +10,29 @@ package net.tinyos.util;
  * V1.1: provide wrapper so that getenv doesn't fail horribly when the
  * native code is not found.
  *
+ * V1.2: use System.getenv (the SDK now requires Java 7 or later), and
+ * only load the native code if it fails.
+ *
  * @author   R M Yorston, David Gay
- * @version  1.1
+ * @version  1.2
  */
 public class Env {
-    static private boolean loaded;
-    static {
-	try {
-	    net.tinyos.util.TOSLibraryLoader.load("getenv");
-	    loaded = true;
-	}
-	catch (Throwable t) {
-	    System.err.println("getenv JNI library not found. Env.getenv will not work");
-	    System.err.println("(run the tos-install-jni tool, see man tos-install-jni for more details)\n");
+    static private boolean tried, loaded;
+
+    // Load the native code, the first time it's needed
+    static private synchronized boolean loadNative() {
+	if (!tried) {
+	    tried = true;
+	    try {
+		net.tinyos.util.TOSLibraryLoader.load("getenv");
+		loaded = true;
+	    }
+	    catch (Throwable t) {
+		System.err.println("getenv JNI library not found. Env.getenv will not work");
+		System.err.println("(run the tos-install-jni tool, see man tos-install-jni for more details)\n");
+	    }
 	}
+	return loaded;
     }
 
     private Env() {
@@ -38,7 +47,13 @@ public class Env {
      * variable is not defined.
      */
     public static String getenv(String name) {
-	if (loaded) {
+	try {
+	    return System.getenv(name);
+	}
+	catch (Error e) {
+	    // Fall back to the native code
+	}
+	if (loadNative()) {
 	    return igetenv(name);
 	}
 	else {
@@ -26,6 +26,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
 
 /**
  * This is a loader for native libraries that tries
@@ -51,11 +63,22 @@ import java.io.PrintStream;
  * system and architecture. It then attempts to copy the
  * library from a resource on the classpath (which might be
  * inside a .jar file, such as the tinyos.jar file) to a
- * temporary file and load the library from this temporary
- * file. The advantage of this method is that no native
- * library files need to be installed on the computer (and
- * thus no administrator rights are necessary). The temporary
- * files are deleted when the virtual machine terminates.
+ * cache directory and load the library from there. The
+ * advantage of this method is that no native library files
+ * need to be installed on the computer (and thus no
+ * administrator rights are necessary).
+ * 
+ * The cached copies are named after the CRC-32 and size of
+ * the library, so each version of a library is extracted
+ * once (and checked while it is copied). The cache directory
+ * is given by the net.tinyos.libcache system property, and
+ * defaults to .tinyos/jni in the user's home directory. As
+ * the name is no proof of a copy's contents, the cache is
+ * only used if the directory and the copy belong to the
+ * user running the virtual machine and cannot be written by
+ * anyone else. If the cache directory cannot be used, the
+ * library is extracted to a temporary file which is deleted
+ * when the virtual machine terminates.
  * 
  * Currently, the library loader class recognizes the
  * following operating systems: Mac OS X, Linux, and Windows.
@@ -69,11 +92,22 @@ import java.io.PrintStream;
  * @author Urs Hunkeler (urs.hunkeler@epfl.ch)
  */
 public class TOSLibraryLoader {
-	public static void load(String libName) {
+	// libraries loaded so far
+	private static HashSet<String> loadedLibraries = new HashSet<String>();
+	
+	/**
+	 * Load a native library, trying the conventional way first
+	 * and then the copy of the library on the classpath.
+	 * Loading an already loaded library does nothing.
+	 * 
+	 * @param libName the library name, as for System.loadLibrary
+	 * @throws UnsatisfiedLinkError if the library could not be loaded
+	 */
+	public static synchronized void load(String libName) {
+		if(loadedLibraries.contains(libName)) return;
+		
 		boolean loaded = false;
 		boolean ok = true;
-		InputStream is = null;
-		FileOutputStream fos = null;
 		String text = "";
 		
 		// attempt to load the library the conventional way
@@ -96,6 +130,19 @@ public class TOSLibraryLoader {
 			text += "----------\n";
 		}
 		
+		String libFile = null;
+		URL libUrl = null;
+		if(!loaded) {
+			libFile = libraryResource(libName);
+			if(libFile != null) {
+				libUrl = TOSLibraryLoader.class.getResource(libFile);
+			}
+			// the quiet path: a copy extracted by an earlier run
+			if(libUrl != null) {
+				loaded = loadCached(libFile, libUrl);
+			}
+		}
+		
 		if(!loaded) {
 			// failed to load the library the conventional way
 			System.err.println("Error loading the TinyOS JNI libraries the conventional way!");
@@ -118,34 +165,6 @@ public class TOSLibraryLoader {
 					"' (" + arch + ")");
 			System.out.println();
 			
-			String libFile = null;
-			File tmpFile = null;
-			if(os.toLowerCase().startsWith("linux")) {
-				// Linux
-				if(arch.toLowerCase().equals("x86") || arch.toLowerCase().equals("i386")) {
-					libFile = "linux_x86_" + libName;
-				} else if(arch.toLowerCase().equals("ppc")) {
-					// not currently supported
-					//libFile = "linux_ppc_" + libName;
-				} else if(arch.toLowerCase().equals("amd64")) {
-					libFile = "linux_amd64_" + libName;
-				}
-			} else if(os.toLowerCase().startsWith("windows")) {
-				// Windows
-				if(arch.toLowerCase().equals("x86") || arch.toLowerCase().equals("i386")) {
-					libFile = "windows_x86_" + libName;
-				} else if(arch.toLowerCase().equals("ppc")) {
-					// not currently supported
-					//libFile = "windows_ppc_" + libName;
-				} else if(arch.toLowerCase().equals("amd64")) {
-					// not currently supported
-					//libFile = "windows_amd64_" + libName;
-				}
-			} else if(os.toLowerCase().startsWith("mac os x")) {
-				libFile = "macosx_universal_" + libName;
-			}
-			if(libFile != null) libFile += ".lib";
-			
 			if(libFile == null) {
 				ok = false;
 				System.out.println("The operating system and architecture " +
@@ -154,74 +173,255 @@ public class TOSLibraryLoader {
 			
 			if(ok) {
 				System.out.println("Trying to locate the file '" + libFile + "' in the classpath");
-				// we found a mapping, now let's try to copy
-				// the library from the classpath (might be
-				// inside a .jar file) to a temporary file
-				// and load it from there
-				
-				// open the library file in the classpath (potentially inside the .jar file)
-				is = TOSLibraryLoader.class.getResourceAsStream(libFile);
-
-				if(is == null) {
+				if(libUrl == null) {
 					System.out.println("The library file was not found in the classpath");
 					ok = false;
 				}
 			}
 			
+			File libCopy = null;
 			if(ok) {
-				try {
-					tmpFile = File.createTempFile(libName, ".lib");
-				} catch(IOException ioe) {
-					ok = false;
-					tmpFile = null;
-					System.out.println("Could not create temporary file to extract library, aborting...");
-					ioe.printStackTrace();
-				}
-			}
-			if(tmpFile == null) {
-				ok = false;
-			}
-			
-			if(ok) {
-				System.out.println("Temporary file created: '" + tmpFile.getAbsolutePath() + "'");
-				tmpFile.deleteOnExit();
-				
-				try {
-					// open the temporary file for writing
-					fos = new FileOutputStream(tmpFile);
-
-					// copy the file
-					byte[] buffer = new byte[1024];
-					int len = 0;
-					while((len = is.read(buffer, 0, buffer.length)) > 0) {
-						fos.write(buffer, 0, len);
-					}
-				} catch(IOException ioe) {
+				// we found a mapping, now let's try to copy
+				// the library from the classpath (might be
+				// inside a .jar file) to the cache and load
+				// it from there
+				libCopy = extract(libName, libFile, libUrl);
+				if(libCopy == null) {
 					ok = false;
-					System.out.println("An error occurred while copying the library file, aborting...");
-					tmpFile.delete();
-					tmpFile = null;
-				} finally {
-					if(fos != null) try { fos.close(); } catch(IOException ioe) { ioe.printStackTrace(); }
-					if( is != null) try {  is.close(); } catch(IOException ioe) { ioe.printStackTrace(); }
 				}
 			}
 			
 			if(ok) {
 				try {
 					System.out.println("Library copied successfully. Let's load it.");
-					System.load(tmpFile.getAbsolutePath());
+					System.load(libCopy.getAbsolutePath());
 					loaded = true;
 					System.out.println("Library loaded successfully");
 				} catch(Throwable t) {
 					ok = false;
 					System.out.println("Error loading the library: " + t.getMessage());
 					t.printStackTrace();
-					tmpFile.delete();
-					tmpFile = null;
 				}
 			}
 		}
+		
+		if(!loaded) {
+			throw new UnsatisfiedLinkError("Could not load library '" + libName + "'");
+		}
+		loadedLibraries.add(libName);
+	}
+	
+	// The classpath resource holding libName for this operating
+	// system and architecture, or null if there is none
+	private static String libraryResource(String libName) {
+		String os   = System.getProperty("os.name");
+		String arch = System.getProperty("os.arch");
+		String libFile = null;
+		if(os.toLowerCase().startsWith("linux")) {
+			// Linux
+			if(arch.toLowerCase().equals("x86") || arch.toLowerCase().equals("i386")) {
+				libFile = "linux_x86_" + libName;
+			} else if(arch.toLowerCase().equals("ppc")) {
+				// not currently supported
+				//libFile = "linux_ppc_" + libName;
+			} else if(arch.toLowerCase().equals("amd64")) {
+				libFile = "linux_amd64_" + libName;
+			}
+		} else if(os.toLowerCase().startsWith("windows")) {
+			// Windows
+			if(arch.toLowerCase().equals("x86") || arch.toLowerCase().equals("i386")) {
+				libFile = "windows_x86_" + libName;
+			} else if(arch.toLowerCase().equals("ppc")) {
+				// not currently supported
+				//libFile = "windows_ppc_" + libName;
+			} else if(arch.toLowerCase().equals("amd64")) {
+				// not currently supported
+				//libFile = "windows_amd64_" + libName;
+			}
+		} else if(os.toLowerCase().startsWith("mac os x")) {
+			libFile = "macosx_universal_" + libName;
+		}
+		if(libFile != null) libFile += ".lib";
+		return libFile;
+	}
+	
+	private static File cacheDirectory() {
+		String dir = System.getProperty("net.tinyos.libcache");
+		if(dir != null) return new File(dir);
+		return new File(new File(System.getProperty("user.home"), ".tinyos"), "jni");
+	}
+	
+	// The CRC-32 and size of the library at libUrl. Jar entries
+	// record both, so these are usually found without reading
+	// the library.
+	private static long[] checksum(URL libUrl) throws IOException {
+		URLConnection connection = libUrl.openConnection();
+		if(connection instanceof JarURLConnection) {
+			JarEntry entry = ((JarURLConnection)connection).getJarEntry();
+			if(entry.getCrc() != -1 && entry.getSize() != -1) {
+				return new long[] { entry.getCrc(), entry.getSize() };
+			}
+		}
+		InputStream is = connection.getInputStream();
+		try {
+			return checksum(is, null);
+		} finally {
+			is.close();
+		}
+	}
+	
+	// The CRC-32 and size of is's contents, which are also copied
+	// to os if it isn't null
+	private static long[] checksum(InputStream is, FileOutputStream os) throws IOException {
+		CRC32 crc = new CRC32();
+		long size = 0;
+		byte[] buffer = new byte[8192];
+		int len = 0;
+		while((len = is.read(buffer, 0, buffer.length)) > 0) {
+			crc.update(buffer, 0, len);
+			if(os != null) os.write(buffer, 0, len);
+			size += len;
+		}
+		return new long[] { crc.getValue(), size };
+	}
+	
+	// The name of the cached copy of libFile, whose checksum is sum
+	private static File cachedName(String libFile, long[] sum) {
+		String base = libFile.substring(0, libFile.length() - ".lib".length());
+		return new File(cacheDirectory(), base + "-" + Long.toHexString(sum[0]) +
+				"-" + sum[1] + ".lib");
+	}
+	
+	// Whether file can only have been written by the user running
+	// this virtual machine: it must belong to that user and, where
+	// the file system has POSIX permissions, not be writable by
+	// group or others
+	private static boolean trusted(File file) {
+		try {
+			Path path = file.toPath();
+			UserPrincipal me = path.getFileSystem().getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+			if(!me.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS))) return false;
+			try {
+				Set<PosixFilePermission> perms = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+				return !perms.contains(PosixFilePermission.GROUP_WRITE) &&
+					!perms.contains(PosixFilePermission.OTHERS_WRITE);
+			} catch(UnsupportedOperationException uoe) {
+				return true;
+			}
+		} catch(Exception e) {
+			return false;
+		}
+	}
+	
+	// Load the cached copy of libFile if there is a valid one
+	private static boolean loadCached(String libFile, URL libUrl) {
+		try {
+			long[] sum = checksum(libUrl);
+			File cached = cachedName(libFile, sum);
+			if(!cached.isFile() || cached.length() != sum[1] ||
+			   !trusted(cacheDirectory()) || !trusted(cached)) return false;
+			System.load(cached.getAbsolutePath());
+			return true;
+		} catch(Throwable t) {
+			// fall back to extracting the library again
+			return false;
+		}
+	}
+	
+	// Copy the library at libUrl to the cache, or to a temporary
+	// file if the cache is not usable. Returns the copy, or null
+	// on failure.
+	private static File extract(String libName, String libFile, URL libUrl) {
+		long[] sum;
+		File cached = null;
+		File dir = cacheDirectory();
+		try {
+			sum = checksum(libUrl);
+			cached = cachedName(libFile, sum);
+		} catch(IOException ioe) {
+			System.out.println("Could not read the library file, aborting...");
+			ioe.printStackTrace();
+			return null;
+		}
+		
+		File tmpFile = null;
+		boolean inCache = true;
+		try {
+			if(dir.mkdirs()) {
+				// only we may write to it, whatever the umask
+				dir.setWritable(false, false);
+				dir.setWritable(true, true);
+			}
+			if(!trusted(dir)) {
+				throw new IOException("not owned by this user, or writable by others");
+			}
+			tmpFile = File.createTempFile(libName, ".tmp", dir);
+		} catch(IOException ioe) {
+			System.out.println("Cannot use the library cache '" +
+					dir.getAbsolutePath() + "' (" + ioe.getMessage() +
+					"), using a temporary file");
+			inCache = false;
+		}
+		if(!inCache) {
+			try {
+				tmpFile = File.createTempFile(libName, ".lib");
+			} catch(IOException ioe) {
+				System.out.println("Could not create temporary file to extract library, aborting...");
+				ioe.printStackTrace();
+				return null;
+			}
+		}
+		System.out.println("Temporary file created: '" + tmpFile.getAbsolutePath() + "'");
+		
+		boolean ok = true;
+		InputStream is = null;
+		FileOutputStream fos = null;
+		try {
+			// open the library file in the classpath (potentially
+			// inside the .jar file) and the temporary file
+			is = libUrl.openStream();
+			fos = new FileOutputStream(tmpFile);
+			long[] copied = checksum(is, fos);
+			if(copied[0] != sum[0] || copied[1] != sum[1]) {
+				throw new IOException("checksum mismatch");
+			}
+		} catch(IOException ioe) {
+			ok = false;
+			System.out.println("An error occurred while copying the library file, aborting...");
+		} finally {
+			if(fos != null) try { fos.close(); } catch(IOException ioe) { ioe.printStackTrace(); }
+			if( is != null) try {  is.close(); } catch(IOException ioe) { ioe.printStackTrace(); }
+		}
+		if(!ok) {
+			tmpFile.delete();
+			return null;
+		}
+		
+		if(!inCache) {
+			tmpFile.deleteOnExit();
+			return tmpFile;
+		}
+		tmpFile.setWritable(false, false);
+		tmpFile.setWritable(true, true);
+		
+		// Move the copy into place. Another virtual machine may
+		// have got there first, in which case we use its copy.
+		if(tmpFile.renameTo(cached)) {
+			System.out.println("Library cached as '" + cached.getAbsolutePath() + "'");
+			return cached;
+		}
+		if(cached.isFile() && cached.length() == sum[1] && trusted(cached)) {
+			tmpFile.delete();
+			return cached;
+		}
+		// A damaged copy (which might be in use on some systems)
+		cached.delete();
+		if(tmpFile.renameTo(cached)) {
+			return cached;
+		}
+		tmpFile.deleteOnExit();
+		return tmpFile;
 	}
 	
 	public static void main(String[] args) {
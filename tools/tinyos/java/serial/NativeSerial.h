@@ -72,6 +72,9 @@ public:
   int write( int b );
   int write( const signed char buffer_in[], int off, int len );
 
+  int readDirect( unsigned char* buffer_nio, int off, int len, int timeout );
+  int writeDirect( unsigned char* buffer_nio, int off, int len );
+
   static std::string getTOSCommMap();
 };
 
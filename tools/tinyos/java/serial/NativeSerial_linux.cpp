@@ -331,6 +331,100 @@ note( "write end" );
     return write( &byte, 0, 1 );
   }
 
+  // Wait up to timeout ms (forever if timeout < 0) for the port to become
+  // readable (or writable, if output). Waits in 100ms slices so that a
+  // concurrent close() is noticed. Returns false on timeout or close.
+  bool wait_ready( int fd, bool output, int timeout )
+  {
+    fd_set fds;
+    struct timeval tv;
+    int waited = 0;
+
+    while( m_fd != -1 )
+    {
+      int slice = 100;
+      if( (timeout >= 0) && (timeout - waited < slice) )
+	slice = timeout - waited;
+
+      FD_ZERO( &fds );
+      FD_SET( fd, &fds );
+      tv.tv_sec = 0;
+      tv.tv_usec = slice*1000;
+
+      int rv = select( fd+1, output ? NULL : &fds, output ? &fds : NULL, NULL, &tv );
+      if( rv == -1 )
+      {
+	if( errno == EINTR )
+	  continue;
+	errno_wrap( true, "wait_ready.select" );
+      }
+      if( rv > 0 )
+	return true;
+
+      waited += slice;
+      if( (timeout >= 0) && (waited >= timeout) )
+	return false;
+    }
+    return false;
+  }
+
+  // Read at most len bytes into buffer+off, waiting up to timeout ms
+  // (forever if timeout < 0) for at least one byte. Returns the number of
+  // bytes read, 0 on timeout, or -1 if the port was closed. Throws if the
+  // port hung up (e.g., a USB serial adapter was unplugged).
+  int readDirect( unsigned char* buffer_nio, int off, int len, int timeout )
+  {
+note( "readDirect begin" );
+    int fd = m_fd;
+    bool waited = false;
+
+    while( m_fd != -1 )
+    {
+      int nread = ::read( fd, buffer_nio+off, len );
+      if( nread > 0 )
+      {
+note( "readDirect end" );
+	return nread;
+      }
+      errno_wrap( (nread == -1) && (errno != EAGAIN) && (errno != EINTR), "readDirect" );
+
+      // A hung-up tty stays readable, but reads return end-of-file (0)
+      // for ever: don't report that as a timeout
+      if( waited && (nread == 0) && (m_fd != -1) )
+	throw comm_port_error( "readDirect: port hung up" );
+      if( waited && (timeout >= 0) )
+	return 0;
+      if( !wait_ready( fd, false, timeout ) && (timeout >= 0) )
+	return (m_fd == -1) ? -1 : 0;
+      waited = true;
+    }
+note( "readDirect end" );
+    return -1;
+  }
+
+  // Write all len bytes from buffer+off, waiting for the driver to accept
+  // them. Returns len, or the number of bytes written before the port was
+  // closed.
+  int writeDirect( unsigned char* buffer_nio, int off, int len )
+  {
+note( "writeDirect begin" );
+    int fd = m_fd;
+    int total = 0;
+
+    while( (total < len) && (m_fd != -1) )
+    {
+      int nwritten = ::write( fd, buffer_nio+off+total, len-total );
+      if( nwritten > 0 )
+	total += nwritten;
+      else if( (nwritten == -1) && (errno != EAGAIN) && (errno != EINTR) )
+	errno_wrap( true, "writeDirect" );
+      else
+	wait_ready( fd, true, -1 );
+    }
+note( "writeDirect end" );
+    return total;
+  }
+
   int available()
   {
 note( "available begin" );
@@ -391,6 +485,7 @@ note( "waitForEvent end" );
 note( "cancelWait begin" );
     m_wait_for_events = false;
 note( "cancelWait end" );
+    return true;
   }
 
   bool didEventOccur( int event )
@@ -88,6 +88,9 @@ private:
   int m_events_out;
   bool m_dtr;
   bool m_rts;
+  COMMTIMEOUTS m_timeouts; // the port's original timeouts, for read()
+  bool m_direct_reads; // true while readDirect's timeouts are set
+  int m_read_timeout; // the timeout they were set for
 
 protected:
 
@@ -119,6 +122,30 @@ protected:
     return status;
   }
 
+  // Make ReadFile wait up to timeout ms (forever if timeout < 0) for the
+  // first byte, then return as soon as at least one byte is available.
+  // The driver is only called when the timeout changes.
+  void set_direct_timeouts( int timeout )
+  {
+    if( m_direct_reads && (timeout == m_read_timeout) )
+      return;
+    COMMTIMEOUTS ct = m_timeouts;
+    ct.ReadIntervalTimeout = MAXDWORD;
+    if( timeout == 0 )
+    {
+      ct.ReadTotalTimeoutMultiplier = 0;
+      ct.ReadTotalTimeoutConstant = 0;
+    }
+    else
+    {
+      ct.ReadTotalTimeoutMultiplier = MAXDWORD;
+      ct.ReadTotalTimeoutConstant = (timeout < 0) ? MAXDWORD - 1 : timeout;
+    }
+    test_comm_success( SetCommTimeouts( hComm, &ct ), "set_direct_timeouts.SetCommTimeouts" );
+    m_direct_reads = true;
+    m_read_timeout = timeout;
+  }
+
   static DWORD map_events_to_win32( int event )
   {
     DWORD ev = 0;
@@ -224,6 +251,11 @@ public:
   int read( signed char* buffer, int off, int len )
   {
     DWORD nread = 0;
+    if( m_direct_reads )
+    {
+      test_comm_success( SetCommTimeouts( hComm, &m_timeouts ), "read.SetCommTimeouts" );
+      m_direct_reads = false;
+    }
     if( !ReadFile( hComm, buffer+off, len, &nread, &oread.o ) )
     {
       test_comm_success( GetLastError() == ERROR_IO_PENDING, "read.WriteFile" );
@@ -264,6 +296,41 @@ public:
     return write( &byte, 0, 1 );
   }
 
+  // Read at most len bytes into buffer+off, waiting up to timeout ms
+  // (forever if timeout < 0) for at least one byte. Returns the number of
+  // bytes read or 0 on timeout. The driver does the waiting: with the
+  // timeouts set by set_direct_timeouts, the overlapped read completes,
+  // and signals the read event, as soon as a byte arrives.
+  int readDirect( unsigned char* buffer_nio, int off, int len, int timeout )
+  {
+    DWORD nread = 0;
+    set_direct_timeouts( timeout );
+    if( !ReadFile( hComm, buffer_nio+off, len, &nread, &oread.o ) )
+    {
+      test_comm_success( GetLastError() == ERROR_IO_PENDING, "readDirect.ReadFile" );
+      DWORD rvwait = WaitForSingleObject(oread.o.hEvent,INFINITE);
+      test_comm_success( rvwait != WAIT_FAILED, "readDirect.WaitForSingleObject" );
+      if( rvwait != WAIT_OBJECT_0 )
+	return 0;
+      test_comm_success( GetOverlappedResult(hComm,&oread.o,&nread,TRUE), "readDirect.GetOverlappedresult" );
+    }
+    return nread;
+  }
+
+  // Write all len bytes from buffer+off. Returns len.
+  int writeDirect( unsigned char* buffer_nio, int off, int len )
+  {
+    int total = 0;
+    while( total < len )
+    {
+      int nwritten = write( (const signed char*)buffer_nio, off+total, len-total );
+      if( nwritten <= 0 )
+	break;
+      total += nwritten;
+    }
+    return total;
+  }
+
   int available()
   {
     COMSTAT cs;
@@ -379,7 +446,9 @@ public:
     m_events_in(0), 
     m_events_out(0),
     m_dtr(false),
-    m_rts(false)
+    m_rts(false),
+    m_direct_reads(false),
+    m_read_timeout(0)
   {
     hComm = CreateFile( portname,
       GENERIC_READ | GENERIC_WRITE,
@@ -391,6 +460,7 @@ public:
     );
 
     test_comm_success( hComm != INVALID_HANDLE_VALUE, "NativeSerialPort.CreateFile" );
+    test_comm_success( GetCommTimeouts( hComm, &m_timeouts ), "NativeSerialPort.GetCommTimeouts" );
 
     setDTR(false);
     setRTS(false);
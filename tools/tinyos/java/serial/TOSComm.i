@@ -40,6 +40,9 @@
 
 %include "arrays_java.i";
 %include "std_string.i";
+%include "various.i";
+
+%apply unsigned char *NIOBUFFER { unsigned char* buffer_nio };
 
 %pragma(java) jniclasscode=%{
   static { TOSCommLibraryLoader.load(); }
@@ -1459,6 +1459,80 @@ JNIEXPORT jint JNICALL Java_net_tinyos_comm_TOSCommJNI_NativeSerial_1write_1_1SW
 }
 
 
+JNIEXPORT jint JNICALL Java_net_tinyos_comm_TOSCommJNI_NativeSerial_1readDirect(JNIEnv *jenv, jclass jcls, jlong jarg1, jobject jarg2, jint jarg3, jint jarg4, jint jarg5) {
+    jint jresult = 0 ;
+    NativeSerial *arg1 = (NativeSerial *) 0 ;
+    unsigned char *arg2 = (unsigned char *) 0 ;
+    int arg3 ;
+    int arg4 ;
+    int arg5 ;
+    int result;
+    
+    (void)jenv;
+    (void)jcls;
+    arg1 = *(NativeSerial **)&jarg1; 
+    {
+        arg2 = (unsigned char *) jenv->GetDirectBufferAddress(jarg2); 
+        if (arg2 == NULL) {
+            SWIG_JavaThrowException(jenv, SWIG_JavaRuntimeException, "Unable to get address of direct buffer. Buffer must be allocated direct."); 
+        }
+    }
+    arg3 = (int)jarg3; 
+    arg4 = (int)jarg4; 
+    arg5 = (int)jarg5; 
+    {
+        try {
+            result = (int)(arg1)->readDirect(arg2,arg3,arg4,arg5);
+            
+        } catch (comm_port_error &e) {
+            jclass clazz = jenv->FindClass("java/lang/Exception");
+            std::string s = "TOSComm JNI library runtime error: ";
+            s += + e.what();
+            jenv->ThrowNew( clazz, s.c_str() );
+            return 0;
+        }
+    }
+    jresult = (jint)result; 
+    return jresult;
+}
+
+
+JNIEXPORT jint JNICALL Java_net_tinyos_comm_TOSCommJNI_NativeSerial_1writeDirect(JNIEnv *jenv, jclass jcls, jlong jarg1, jobject jarg2, jint jarg3, jint jarg4) {
+    jint jresult = 0 ;
+    NativeSerial *arg1 = (NativeSerial *) 0 ;
+    unsigned char *arg2 = (unsigned char *) 0 ;
+    int arg3 ;
+    int arg4 ;
+    int result;
+    
+    (void)jenv;
+    (void)jcls;
+    arg1 = *(NativeSerial **)&jarg1; 
+    {
+        arg2 = (unsigned char *) jenv->GetDirectBufferAddress(jarg2); 
+        if (arg2 == NULL) {
+            SWIG_JavaThrowException(jenv, SWIG_JavaRuntimeException, "Unable to get address of direct buffer. Buffer must be allocated direct."); 
+        }
+    }
+    arg3 = (int)jarg3; 
+    arg4 = (int)jarg4; 
+    {
+        try {
+            result = (int)(arg1)->writeDirect(arg2,arg3,arg4);
+            
+        } catch (comm_port_error &e) {
+            jclass clazz = jenv->FindClass("java/lang/Exception");
+            std::string s = "TOSComm JNI library runtime error: ";
+            s += + e.what();
+            jenv->ThrowNew( clazz, s.c_str() );
+            return 0;
+        }
+    }
+    jresult = (jint)result; 
+    return jresult;
+}
+
+
 JNIEXPORT jstring JNICALL Java_net_tinyos_comm_TOSCommJNI_NativeSerial_1getTOSCommMap(JNIEnv *jenv, jclass jcls) {
     jstring jresult = 0 ;
     std::string result;